@@ -2,10 +2,12 @@ package lsmrtree;
 
 import lsmrtree.base.LSMLevel;
 import rtree.base.RTreeNode;
+import rtree.seededClustering.BulkLoadStrategy;
 import rtree.seededClustering.LargeRTree;
 import rtree.seededClustering.SFCRTreeRecord;
 import rtree.seededClustering.SeedTree;
 import rtree.seededClustering.SmallRTree;
+import rtree.seededClustering.SpaceFillingCurve;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -25,6 +27,8 @@ public class C1 extends LSMLevel {
     private boolean lastRecordsRetrieved;
     private int totalRecordsHandled;
     private int k;
+    private SpaceFillingCurve spaceFillingCurve = SpaceFillingCurve.LOW_X;
+    private BulkLoadStrategy bulkLoadStrategy = BulkLoadStrategy.SFC;
 
     public C1(int size, double thresholdPercent) {
         super(size, thresholdPercent);
@@ -49,6 +53,14 @@ public class C1 extends LSMLevel {
     }
 
     private void constructSmallTreesAndOutliers() {
+        buildSmallTrees(clusterIncomingRecords());
+    }
+
+    /**
+     * clusters the incoming records around the seed nodes of the large tree set by setLargeTree.
+     * Reads the large tree, which must not change meanwhile
+     */
+    public SeedTree clusterIncomingRecords() {
         this.k = this.largeTree.getHeight()/2;
 
         Queue<SFCRTreeRecord> currentRecords = new LinkedList<>(this.incomingRecords);
@@ -58,18 +70,24 @@ public class C1 extends LSMLevel {
         this.totalRecordsHandled += currentRecords.size();
 
         SeedTree seedTree = new SeedTree(this.largeTree.getDimensions(), this.largeTree.getm(), this.largeTree.getM(), this.k, this.largeTree.createNodeFromExistingNode(this.largeTree.getRoot()), currentRecords);
+        this.largeTree = null;
+        return seedTree;
+    }
 
+    /**
+     * bulk-loads a small tree for each cluster of the seed tree and keeps the outliers, without reading the large tree
+     */
+    public void buildSmallTrees(SeedTree seedTree) {
         for (RTreeNode clusterKey : seedTree.getClusters().keySet()) {
             ArrayList<SFCRTreeRecord> clusterRecords = seedTree.getClusters().get(clusterKey);
             if (clusterRecords.size() != 0) {
-                SmallRTree smallTree = new SmallRTree(this.largeTree.getDimensions(), this.largeTree.getm(), this.largeTree.getM(), clusterRecords, clusterKey.getId(), clusterKey.getHeight());
+                SmallRTree smallTree = new SmallRTree(seedTree.getDimensions(), seedTree.getm(), seedTree.getM(), clusterRecords, clusterKey.getId(), clusterKey.getHeight(), this.spaceFillingCurve, this.bulkLoadStrategy);
 
                 this.smallTrees.add(smallTree);
             }
         }
 
         this.outliers.addAll(seedTree.getOutliers());
-        this.largeTree = null;
     }
 
     public void flushTreesAndOutliers() {
@@ -105,6 +123,14 @@ public class C1 extends LSMLevel {
         this.largeTree = currentLargeTree;
     }
 
+    public void setSpaceFillingCurve(SpaceFillingCurve spaceFillingCurve) {
+        this.spaceFillingCurve = spaceFillingCurve;
+    }
+
+    public void setBulkLoadStrategy(BulkLoadStrategy bulkLoadStrategy) {
+        this.bulkLoadStrategy = bulkLoadStrategy;
+    }
+
     public int getTotalRecordsHandled() {
         return this.totalRecordsHandled;
     }
@@ -1,8 +1,10 @@
 package lsmrtree;
 
+import rtree.seededClustering.BulkLoadStrategy;
 import rtree.seededClustering.LargeRTree;
 import rtree.seededClustering.SFCRTreeRecord;
 import rtree.seededClustering.SmallRTree;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -34,6 +36,14 @@ public class C2 {
         this.receivingRecords = false;
     }
 
+    // if want to start with existing data in component, bulk-loaded from records
+    public C2(int dimensions, int m, int M, ArrayList<SFCRTreeRecord> startRecords, BulkLoadStrategy bulkLoadStrategy) {
+        this.largeTree = new LargeRTree(dimensions, m, M, startRecords, bulkLoadStrategy);
+        this.incomingSmallTrees = new ConcurrentLinkedQueue<>();
+        this.incomingOutliers = new ConcurrentLinkedQueue<>();
+        this.receivingRecords = false;
+    }
+
     public void insertSmallTrees() {
         Queue<SmallRTree> smallTreesToInsert = new LinkedList<>(this.incomingSmallTrees);
         this.incomingSmallTrees.clear();
@@ -41,11 +51,9 @@ public class C2 {
     }
 
     public void insertOutliers() {
-        int numberOfOutliers = this.incomingOutliers.size();
-        for (int i = 0; i < numberOfOutliers; i++) {
-            this.largeTree.insert(this.incomingOutliers.remove());
-            this.largeTree.incrementRecordCount();
-        }
+        ArrayList<SFCRTreeRecord> outliersToInsert = new ArrayList<>(this.incomingOutliers);
+        this.incomingOutliers.clear();
+        this.largeTree.bulkInsertOutliers(outliersToInsert);
     }
 
     public LargeRTree getLargeTree() {
@@ -1,23 +1,48 @@
 package lsmrtree;
 
 import rtree.base.DataObject;
+import rtree.base.SplitPolicy;
+import rtree.seededClustering.BulkLoadStrategy;
 import rtree.seededClustering.SFCRTreeRecord;
+import rtree.seededClustering.SeedTree;
 import rtree.seededClustering.SmallRTree;
+import rtree.seededClustering.SpaceFillingCurve;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Structure for the whole LSM-tree. Consists of three levels (C0, C1 and C2).
+ * run inserts through the levels as a pipeline, each level working on its own thread on a different flushed batch.
+ * runSequential inserts on the calling thread:
  * C0 cannot receive objects if C1 or C2 is busy
  * C1 cannot receive objects if C2 is busy
  *
  * @author Mari Sofie Lerfaldet <marisler@stud.ntnu.no>
  */
 public class LSMRTree{
+    private static final int PIPELINE_QUEUE_CAPACITY = 2; // flushed batches waiting between two stages of the pipeline
+    private static final Queue<SFCRTreeRecord> END_OF_RECORDS = new LinkedList<>();
+    private static final FlushedBatch END_OF_BATCHES = new FlushedBatch(null, null);
+
     public C0 c0;
     public C1 c1;
     public C2 c2;
 
+    // C1 clusters against the large tree under the read lock, C2 inserts into it under the write lock
+    private final ReentrantReadWriteLock largeTreeLock = new ReentrantReadWriteLock();
+    private long c0BusyNanos;
+    private long c1BusyNanos;
+    private long c2BusyNanos;
+
     private Queue<DataObject> incomingObjects;
     private int totalIncomingObjects;
     private boolean c0HandledLastObjects;
@@ -44,6 +69,39 @@ public class LSMRTree{
         this.c2HandledLastObjects = false;
     }
 
+    public LSMRTree(int size, double thresholdPercent, int T, int dimensions, int m, int M, ArrayList<SFCRTreeRecord> startRecords, BulkLoadStrategy bulkLoadStrategy) {
+        this.c0 = new C0(size, thresholdPercent);
+        this.c1 = new C1(size*T, thresholdPercent);
+        this.c2 = new C2(dimensions, m, M, startRecords, bulkLoadStrategy);
+
+        this.c0HandledLastObjects = false;
+        this.c1HandledLastObjects = false;
+        this.c2HandledLastObjects = false;
+    }
+
+    /**
+     * selects the space-filling curve used for packing small trees in C1 and repacking the large tree in C2
+     */
+    public void setSpaceFillingCurve(SpaceFillingCurve spaceFillingCurve) {
+        this.c1.setSpaceFillingCurve(spaceFillingCurve);
+        this.c2.getLargeTree().setSpaceFillingCurve(spaceFillingCurve);
+    }
+
+    /**
+     * selects how small trees in C1 are bulk-loaded and how the large tree in C2 is repacked
+     */
+    public void setBulkLoadStrategy(BulkLoadStrategy bulkLoadStrategy) {
+        this.c1.setBulkLoadStrategy(bulkLoadStrategy);
+        this.c2.getLargeTree().setBulkLoadStrategy(bulkLoadStrategy);
+    }
+
+    /**
+     * selects how nodes of the large tree in C2 are split when outliers and subtrees are inserted
+     */
+    public void setSplitPolicy(SplitPolicy splitPolicy) {
+        this.c2.getLargeTree().setSplitPolicy(splitPolicy);
+    }
+
     public void handleTransitionFromC0ToC1() {
         this.c0.flushRecords();
         Queue<SFCRTreeRecord> flushedRecords = this.c0.getFlushedRecords();
@@ -93,7 +151,163 @@ public class LSMRTree{
         }
     }
 
+    /**
+     * small trees and outliers flushed from C1 together
+     */
+    private static class FlushedBatch {
+        private final Queue<SmallRTree> smallTrees;
+        private final Queue<SFCRTreeRecord> outliers;
+
+        private FlushedBatch(Queue<SmallRTree> smallTrees, Queue<SFCRTreeRecord> outliers) {
+            this.smallTrees = smallTrees;
+            this.outliers = outliers;
+        }
+    }
+
+    /**
+     * inserts the objects through the levels as a pipeline of three stages: C0 buffers objects on the calling thread,
+     * C1 clusters the flushed records and builds small trees, and C2 inserts them into the large tree, each on its own
+     * thread. The stages are connected by queues of at most PIPELINE_QUEUE_CAPACITY flushed batches, so a stage falling
+     * behind holds back the stages before it, and the throughput is the throughput of the slowest stage.
+     *
+     * C1 clusters while no insertion into the large tree is running, and builds the small trees while C2 inserts. A seed
+     * node split by C2 in between is replaced by the node on its height needing least enlargement when inserting.
+     */
     public void run(Queue<DataObject> incomingObjects) {
+        ExecutorService stages = Executors.newFixedThreadPool(2);
+        BlockingQueue<Queue<SFCRTreeRecord>> flushedRecords = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+        BlockingQueue<FlushedBatch> flushedBatches = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+        try {
+            Future<?> c2Stage = stages.submit(() -> {
+                runC2Stage(flushedBatches);
+                return null;
+            });
+            Future<?> c1Stage = stages.submit(() -> {
+                runC1Stage(flushedRecords, flushedBatches, c2Stage);
+                return null;
+            });
+            runC0Stage(incomingObjects, flushedRecords, c1Stage);
+            c1Stage.get();
+            c2Stage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while inserting", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Pipeline stage failed", e.getCause());
+        } finally {
+            stages.shutdownNow();
+        }
+
+        this.c0HandledLastObjects = true;
+        this.c1HandledLastObjects = true;
+        this.c2HandledLastObjects = true;
+    }
+
+    private void runC0Stage(Queue<DataObject> incomingObjects, BlockingQueue<Queue<SFCRTreeRecord>> flushedRecords, Future<?> c1Stage) throws InterruptedException, ExecutionException {
+        for (DataObject incomingObject : incomingObjects) {
+            long start = System.nanoTime();
+            this.c0.addRecord(incomingObject);
+            Queue<SFCRTreeRecord> records = null;
+            if (this.c0.getIsFull()) {
+                records = flushC0();
+            }
+            this.c0BusyNanos += System.nanoTime() - start;
+            if (records != null) {
+                putBatch(flushedRecords, records, c1Stage);
+            }
+        }
+        if (!this.c0.levelIsEmpty()) {
+            putBatch(flushedRecords, flushC0(), c1Stage);
+        }
+        putBatch(flushedRecords, END_OF_RECORDS, c1Stage);
+    }
+
+    private Queue<SFCRTreeRecord> flushC0() {
+        this.c0.flushRecords();
+        Queue<SFCRTreeRecord> records = this.c0.getFlushedRecords();
+        this.c0.setIsFull(false);
+        return records;
+    }
+
+    private void runC1Stage(BlockingQueue<Queue<SFCRTreeRecord>> flushedRecords, BlockingQueue<FlushedBatch> flushedBatches, Future<?> c2Stage) throws InterruptedException, ExecutionException {
+        while (true) {
+            Queue<SFCRTreeRecord> records = flushedRecords.take();
+            long start = System.nanoTime();
+            FlushedBatch batch = null;
+            if (records == END_OF_RECORDS) {
+                this.c1.setLastRecordsRetrieved(true);
+                if (!this.c1.incomingRecordsEmpty()) {
+                    batch = clusterAndBuildSmallTrees();
+                }
+            }
+            else {
+                this.c1.addIncomingRecords(records);
+                if (this.c1.getIsFull()) {
+                    batch = clusterAndBuildSmallTrees();
+                }
+            }
+            this.c1BusyNanos += System.nanoTime() - start;
+
+            if (batch != null) {
+                putBatch(flushedBatches, batch, c2Stage);
+            }
+            if (records == END_OF_RECORDS) {
+                putBatch(flushedBatches, END_OF_BATCHES, c2Stage);
+                return;
+            }
+        }
+    }
+
+    private FlushedBatch clusterAndBuildSmallTrees() {
+        SeedTree seedTree;
+        this.largeTreeLock.readLock().lock();
+        try {
+            this.c1.setLargeTree(this.c2.getLargeTree());
+            seedTree = this.c1.clusterIncomingRecords();
+        } finally {
+            this.largeTreeLock.readLock().unlock();
+        }
+
+        this.c1.buildSmallTrees(seedTree);
+        this.c1.flushTreesAndOutliers();
+        return new FlushedBatch(this.c1.getFlushedTrees(), this.c1.getFlushedOutliers());
+    }
+
+    private void runC2Stage(BlockingQueue<FlushedBatch> flushedBatches) throws InterruptedException {
+        while (true) {
+            FlushedBatch batch = flushedBatches.take();
+            if (batch == END_OF_BATCHES) {
+                return;
+            }
+            long start = System.nanoTime();
+            this.largeTreeLock.writeLock().lock();
+            try {
+                this.c2.addIncomingSmallTrees(batch.smallTrees);
+                this.c2.addIncomingOutliers(batch.outliers);
+                this.c2.insertData();
+            } finally {
+                this.largeTreeLock.writeLock().unlock();
+            }
+            this.c2BusyNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * waits for room in the queue, stops with the failure of the consuming stage instead of waiting forever if it failed
+     */
+    private static <T> void putBatch(BlockingQueue<T> queue, T batch, Future<?> consumer) throws InterruptedException, ExecutionException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (consumer.isDone()) {
+                consumer.get();
+                throw new IllegalStateException("Pipeline stage stopped before the last batch");
+            }
+        }
+    }
+
+    /**
+     * inserts the objects on the calling thread, each level waiting for the levels below it
+     */
+    public void runSequential(Queue<DataObject> incomingObjects) {
         this.incomingObjects = new LinkedList<>(incomingObjects);
         this.totalIncomingObjects = incomingObjects.size();
 
@@ -116,6 +330,21 @@ public class LSMRTree{
         }
     }
 
+    /**
+     * time each stage of the last pipelined runs spent working, not waiting for batches or for room in the next queue
+     */
+    public long getC0BusyMillis() {
+        return this.c0BusyNanos / 1_000_000;
+    }
+
+    public long getC1BusyMillis() {
+        return this.c1BusyNanos / 1_000_000;
+    }
+
+    public long getC2BusyMillis() {
+        return this.c2BusyNanos / 1_000_000;
+    }
+
     public boolean isC0HandledLastObjects() {
         return c0HandledLastObjects;
     }
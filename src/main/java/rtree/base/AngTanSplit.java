@@ -0,0 +1,98 @@
+package rtree.base;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Linear split by Ang and Tan. Along each axis every entry goes to the side of the node MBR it is closest to, giving
+ * one distribution per axis. The distribution with the most even group sizes is used, ties going to the least overlap
+ * between the groups and then to the least total area. If the smaller group has fewer than m entries, the entries of
+ * the larger group closest to the other side are moved over until it has m.
+ */
+public class AngTanSplit implements SplitPolicy {
+
+    @Override
+    public void split(List<RTreeRecord> entries, int m, List<RTreeRecord> group1, List<RTreeRecord> group2) {
+        MBR nodeMBR = entries.get(0).getMBR();
+        for (RTreeRecord record : entries) {
+            nodeMBR = nodeMBR.union(record.getMBR());
+        }
+
+        List<RTreeRecord> bestLow = null;
+        List<RTreeRecord> bestHigh = null;
+        int bestAxis = 0;
+        int bestLargerSize = Integer.MAX_VALUE;
+        double bestOverlap = Double.MAX_VALUE;
+        double bestArea = Double.MAX_VALUE;
+
+        for (int axis = 0; axis < 2; axis++) {
+            List<RTreeRecord> lowSide = new ArrayList<>();
+            List<RTreeRecord> highSide = new ArrayList<>();
+            for (RTreeRecord record : entries) {
+                if (distanceToLow(record.getMBR(), nodeMBR, axis) < distanceToHigh(record.getMBR(), nodeMBR, axis)) {
+                    lowSide.add(record);
+                }
+                else {
+                    highSide.add(record);
+                }
+            }
+
+            int largerSize = Math.max(lowSide.size(), highSide.size());
+            double overlap = 0;
+            double area = 0;
+            if (!lowSide.isEmpty() && !highSide.isEmpty()) {
+                MBR lowMBR = boundingBox(lowSide);
+                MBR highMBR = boundingBox(highSide);
+                overlap = lowMBR.calculateOverlap(highMBR);
+                area = lowMBR.getArea() + highMBR.getArea();
+            }
+
+            if (largerSize < bestLargerSize || (largerSize == bestLargerSize && (overlap < bestOverlap
+                    || (overlap == bestOverlap && area < bestArea)))) {
+                bestLow = lowSide;
+                bestHigh = highSide;
+                bestAxis = axis;
+                bestLargerSize = largerSize;
+                bestOverlap = overlap;
+                bestArea = area;
+            }
+        }
+
+        fillUp(bestLow, bestHigh, m, nodeMBR, bestAxis);
+        group1.addAll(bestLow);
+        group2.addAll(bestHigh);
+    }
+
+    // moves entries of the larger side closest to the smaller side over until the smaller side has m entries
+    private void fillUp(List<RTreeRecord> lowSide, List<RTreeRecord> highSide, int m, MBR nodeMBR, int axis) {
+        if (lowSide.size() < m) {
+            highSide.sort(Comparator.comparingDouble(record -> distanceToLow(record.getMBR(), nodeMBR, axis)));
+            List<RTreeRecord> moved = highSide.subList(0, m - lowSide.size());
+            lowSide.addAll(moved);
+            moved.clear();
+        }
+        else if (highSide.size() < m) {
+            lowSide.sort(Comparator.comparingDouble(record -> distanceToHigh(record.getMBR(), nodeMBR, axis)));
+            List<RTreeRecord> moved = lowSide.subList(0, m - highSide.size());
+            highSide.addAll(moved);
+            moved.clear();
+        }
+    }
+
+    private static float distanceToLow(MBR mbr, MBR nodeMBR, int axis) {
+        return axis == 0 ? mbr.getLow().getX() - nodeMBR.getLow().getX() : mbr.getLow().getY() - nodeMBR.getLow().getY();
+    }
+
+    private static float distanceToHigh(MBR mbr, MBR nodeMBR, int axis) {
+        return axis == 0 ? nodeMBR.getHigh().getX() - mbr.getHigh().getX() : nodeMBR.getHigh().getY() - mbr.getHigh().getY();
+    }
+
+    private static MBR boundingBox(List<RTreeRecord> records) {
+        MBR mbr = records.get(0).getMBR();
+        for (RTreeRecord record : records) {
+            mbr = mbr.union(record.getMBR());
+        }
+        return mbr;
+    }
+}
@@ -0,0 +1,45 @@
+package rtree.base;
+
+import java.util.List;
+
+/**
+ * Coordinates of the MBRs of all records in a node, stored as one primitive array per coordinate so that the
+ * MBRKernels can process all entries of the node at once. Built from the records of a node and not changed afterwards.
+ */
+public final class EntryCoordinates {
+    final float[] lowX;
+    final float[] lowY;
+    final float[] highX;
+    final float[] highY;
+    private final float[] areas;
+    private final int size;
+
+    public EntryCoordinates(List<? extends RTreeRecord> records) {
+        this.size = records.size();
+        this.lowX = new float[size];
+        this.lowY = new float[size];
+        this.highX = new float[size];
+        this.highY = new float[size];
+        this.areas = new float[size];
+
+        for (int i = 0; i < size; i++) {
+            MBR mbr = records.get(i).getMBR();
+            lowX[i] = mbr.getLow().getX();
+            lowY[i] = mbr.getLow().getY();
+            highX[i] = mbr.getHigh().getX();
+            highY[i] = mbr.getHigh().getY();
+            areas[i] = Math.abs(highX[i] - lowX[i]) * Math.abs(highY[i] - lowY[i]);
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * area of entry i, same value as getArea of its MBR
+     */
+    public float area(int i) {
+        return this.areas[i];
+    }
+}
@@ -0,0 +1,103 @@
+package rtree.base;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Linear split by Guttman. The first entries of the two groups are the pair with the greatest normalized separation
+ * along either axis, the entry with the highest low side against the entry with the lowest high side. The remaining
+ * entries are added in order to the group needing the least area enlargement, ties going to the group with the smaller
+ * area and then to the group with fewer entries, until the rest must go to one group to fill it up to m.
+ */
+public class LinearSplit implements SplitPolicy {
+
+    @Override
+    public void split(List<RTreeRecord> entries, int m, List<RTreeRecord> group1, List<RTreeRecord> group2) {
+        List<RTreeRecord> remaining = new ArrayList<>(entries);
+        int[] seeds = pickSeeds(remaining);
+        group1.add(remaining.get(seeds[0]));
+        group2.add(remaining.get(seeds[1]));
+        remaining.remove(Math.max(seeds[0], seeds[1]));
+        remaining.remove(Math.min(seeds[0], seeds[1]));
+
+        MBR mbr1 = group1.get(0).getMBR();
+        MBR mbr2 = group2.get(0).getMBR();
+        for (int i = 0; i < remaining.size(); i++) {
+            int left = remaining.size() - i;
+            if (group1.size() + left == m) {
+                group1.addAll(remaining.subList(i, remaining.size()));
+                return;
+            }
+            if (group2.size() + left == m) {
+                group2.addAll(remaining.subList(i, remaining.size()));
+                return;
+            }
+
+            RTreeRecord record = remaining.get(i);
+            if (prefersFirstGroup(mbr1, mbr2, group1.size(), group2.size(), record.getMBR())) {
+                group1.add(record);
+                mbr1 = mbr1.union(record.getMBR());
+            }
+            else {
+                group2.add(record);
+                mbr2 = mbr2.union(record.getMBR());
+            }
+        }
+    }
+
+    private boolean prefersFirstGroup(MBR mbr1, MBR mbr2, int size1, int size2, MBR mbr) {
+        double enlargement1 = mbr1.getAreaEnlargement(mbr);
+        double enlargement2 = mbr2.getAreaEnlargement(mbr);
+        if (enlargement1 != enlargement2) {
+            return enlargement1 < enlargement2;
+        }
+        if (mbr1.getArea() != mbr2.getArea()) {
+            return mbr1.getArea() < mbr2.getArea();
+        }
+        return size1 <= size2;
+    }
+
+    // indices of the two seeds, separation on each axis is normalized by the width of all entries along the axis
+    private int[] pickSeeds(List<RTreeRecord> entries) {
+        int[] seeds = {0, 1};
+        double bestSeparation = Double.NEGATIVE_INFINITY;
+
+        for (int axis = 0; axis < 2; axis++) {
+            int highestLow = 0;
+            int lowestHigh = 0;
+            float minLow = Float.MAX_VALUE;
+            float maxHigh = -Float.MAX_VALUE;
+            for (int i = 0; i < entries.size(); i++) {
+                float low = low(entries.get(i).getMBR(), axis);
+                float high = high(entries.get(i).getMBR(), axis);
+                if (low > low(entries.get(highestLow).getMBR(), axis)) {
+                    highestLow = i;
+                }
+                if (high < high(entries.get(lowestHigh).getMBR(), axis)) {
+                    lowestHigh = i;
+                }
+                minLow = Math.min(minLow, low);
+                maxHigh = Math.max(maxHigh, high);
+            }
+
+            double separation = low(entries.get(highestLow).getMBR(), axis) - high(entries.get(lowestHigh).getMBR(), axis);
+            if (maxHigh > minLow) {
+                separation /= (maxHigh - minLow);
+            }
+            if (separation > bestSeparation && highestLow != lowestHigh) {
+                bestSeparation = separation;
+                seeds[0] = lowestHigh;
+                seeds[1] = highestLow;
+            }
+        }
+        return seeds;
+    }
+
+    private static float low(MBR mbr, int axis) {
+        return axis == 0 ? mbr.getLow().getX() : mbr.getLow().getY();
+    }
+
+    private static float high(MBR mbr, int axis) {
+        return axis == 0 ? mbr.getHigh().getX() : mbr.getHigh().getY();
+    }
+}
@@ -76,8 +76,17 @@ public class MBR {
         return (int)this.high.getY();
     }
 
-    public int getMargin() {
-        return 2 * (this.getHighX() - this.getLowX() + this.getHighY() - this.getLowY());
+    public double getMargin() {
+        return 2.0 * (this.high.getX() - this.low.getX() + this.high.getY() - this.low.getY());
+    }
+
+    /**
+     * returns the smallest MBR covering both this and other
+     */
+    public MBR union(MBR other) {
+        float[] low = {Math.min(this.low.getX(), other.low.getX()), Math.min(this.low.getY(), other.low.getY())};
+        float[] high = {Math.max(this.high.getX(), other.high.getX()), Math.max(this.high.getY(), other.high.getY())};
+        return new MBR(low, high);
     }
 
     public double calculateOverlap(MBR other) {
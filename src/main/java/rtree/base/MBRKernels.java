@@ -0,0 +1,78 @@
+package rtree.base;
+
+/**
+ * Node-level MBR operations, computing the result for all entries of a node against one MBR in a single call.
+ * Results are the same as calling the MBR methods entry by entry: enlargement of entry i is
+ * enlargedAreas[i] - area(i), computed in double as MBR.getAreaEnlargement does.
+ *
+ * The scalar implementation is used by default. Starting the JVM with -Drtree.kernels=vector selects the
+ * implementation using the incubator Vector API. It lives in the source root src/vector/java, compiled with
+ * --add-modules jdk.incubator.vector on top of src/main/java, and is loaded by name, so src/main/java compiles on its
+ * own. Running it needs the same flag. If the class or the module is missing at runtime the scalar implementation is
+ * used.
+ */
+public interface MBRKernels {
+
+    /**
+     * area of each entry enlarged to also cover mbr
+     */
+    void enlargedAreas(EntryCoordinates entries, MBR mbr, float[] result);
+
+    /**
+     * overlapping area between each entry and mbr, same as MBR.calculateOverlap
+     */
+    void overlapAreas(EntryCoordinates entries, MBR mbr, float[] result);
+
+    /**
+     * whether each entry overlaps the query, same as MBR.isOverlapping
+     */
+    void intersectionMask(EntryCoordinates entries, MBR query, boolean[] result);
+
+    static MBRKernels get() {
+        return Selection.KERNELS;
+    }
+
+    /**
+     * creates the vector implementation if requested and available, otherwise the scalar implementation
+     */
+    static MBRKernels create(boolean vector) {
+        if (vector) {
+            try {
+                return (MBRKernels) Class.forName("rtree.base.VectorMBRKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("Vector API not available, using scalar MBR kernels: " + e);
+            }
+        }
+        return new ScalarMBRKernels();
+    }
+
+    /**
+     * index of the entry needing least area enlargement to cover mbr, the first one if several are equal.
+     * Returns -1 when there are no entries
+     */
+    static int leastEnlargement(EntryCoordinates entries, MBR mbr) {
+        if (entries.size() == 0) {
+            return -1;
+        }
+        float[] enlargedAreas = new float[entries.size()];
+        get().enlargedAreas(entries, mbr, enlargedAreas);
+
+        int selected = 0;
+        double minAreaEnlargement = (double) enlargedAreas[0] - entries.area(0);
+        for (int i = 1; i < entries.size(); i++) {
+            double areaEnlargement = (double) enlargedAreas[i] - entries.area(i);
+            if (areaEnlargement < minAreaEnlargement) {
+                minAreaEnlargement = areaEnlargement;
+                selected = i;
+            }
+        }
+        return selected;
+    }
+
+    final class Selection {
+        private static final MBRKernels KERNELS = create("vector".equals(System.getProperty("rtree.kernels")));
+
+        private Selection() {
+        }
+    }
+}
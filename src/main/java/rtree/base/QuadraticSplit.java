@@ -0,0 +1,83 @@
+package rtree.base;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Quadratic split by Guttman. The pair of entries with the largest combined MBR become the first entries of the two
+ * groups. Then the entry with the largest difference in area enlargement between the groups is picked one at a time,
+ * and added to the group needing the least enlargement, until the rest must go to one group to fill it up to m.
+ */
+public class QuadraticSplit implements SplitPolicy {
+
+    @Override
+    public void split(List<RTreeRecord> entries, int m, List<RTreeRecord> group1, List<RTreeRecord> group2) {
+        List<RTreeRecord> remaining = new ArrayList<>(entries);
+        assignFirstRecords(remaining, group1, group2);
+
+        MBR mbr1 = group1.get(0).getMBR();
+        MBR mbr2 = group2.get(0).getMBR();
+        while (!remaining.isEmpty()) {
+            if (group1.size() + remaining.size() == m) {
+                group1.addAll(remaining);
+                remaining.clear();
+            }
+            else if (group2.size() + remaining.size() == m) {
+                group2.addAll(remaining);
+                remaining.clear();
+            }
+            else {
+                RTreeRecord record = remaining.remove(findNextRecord(remaining, mbr1, mbr2));
+                if (mbr1.getAreaEnlargement(record.getMBR()) <= mbr2.getAreaEnlargement(record.getMBR())) {
+                    group1.add(record);
+                    mbr1 = mbr1.union(record.getMBR());
+                }
+                else {
+                    group2.add(record);
+                    mbr2 = mbr2.union(record.getMBR());
+                }
+            }
+        }
+    }
+
+    private void assignFirstRecords(List<RTreeRecord> remaining, List<RTreeRecord> group1, List<RTreeRecord> group2) {
+        double maxArea = -1; // below any area, so two different records are picked also when all pairs have zero area
+        int initialSplitRecordIndex1 = 0;
+        int initialSplitRecordIndex2 = 0;
+
+        // union areas of record i with all records in one kernel call, only pairs with j > i are compared
+        EntryCoordinates entries = new EntryCoordinates(remaining);
+        float[] areasWithRecord = new float[entries.size()];
+        for (int i = 0; i < remaining.size(); i++) {
+            MBRKernels.get().enlargedAreas(entries, remaining.get(i).getMBR(), areasWithRecord);
+            for (int j = i + 1; j < remaining.size(); j++) {
+                double area = areasWithRecord[j];
+                if (maxArea < area) {
+                    maxArea = area;
+                    initialSplitRecordIndex1 = i;
+                    initialSplitRecordIndex2 = j;
+                }
+            }
+        }
+
+        group1.add(remaining.get(initialSplitRecordIndex1));
+        group2.add(remaining.get(initialSplitRecordIndex2));
+        remaining.remove(initialSplitRecordIndex2);
+        remaining.remove(initialSplitRecordIndex1);
+    }
+
+    // index of the record with the largest difference in area enlargement between the groups
+    private int findNextRecord(List<RTreeRecord> remaining, MBR mbr1, MBR mbr2) {
+        double maxDiffAreaEnlargement = -1;
+        int indexNextRecord = 0;
+        for (int i = 0; i < remaining.size(); i++) {
+            MBR mbr = remaining.get(i).getMBR();
+            double diffAreaEnlargement = Math.abs(mbr1.getAreaEnlargement(mbr) - mbr2.getAreaEnlargement(mbr));
+            if (diffAreaEnlargement > maxDiffAreaEnlargement) {
+                maxDiffAreaEnlargement = diffAreaEnlargement;
+                indexNextRecord = i;
+            }
+        }
+        return indexNextRecord;
+    }
+}
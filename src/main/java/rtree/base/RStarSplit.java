@@ -0,0 +1,98 @@
+package rtree.base;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Topological split of the R*-tree. The entries are sorted along each axis by their low and by their high side, and
+ * every distribution of a sorted list into a first group of k entries and a second group of the rest is considered,
+ * for k from m to n - m. The split axis is the one with the smallest sum of margins over its distributions, and on
+ * that axis the distribution with the least overlap between the groups is used, ties going to the least total area.
+ *
+ * MBRs of all first and second groups of a sorted list are found in one pass each from the two ends, so every
+ * distribution is evaluated in constant time.
+ */
+public class RStarSplit implements SplitPolicy {
+
+    @Override
+    public void split(List<RTreeRecord> entries, int m, List<RTreeRecord> group1, List<RTreeRecord> group2) {
+        List<RTreeRecord> bestSorted = null;
+        int bestSize = 0;
+        double bestMarginSum = Double.MAX_VALUE;
+        double bestOverlap = Double.MAX_VALUE;
+        double bestArea = Double.MAX_VALUE;
+
+        for (int axis = 0; axis < 2; axis++) {
+            List<List<RTreeRecord>> sortings = sortingsAlongAxis(entries, axis);
+
+            double marginSum = 0;
+            for (List<RTreeRecord> sorted : sortings) {
+                MBR[] prefix = prefixMBRs(sorted);
+                MBR[] suffix = suffixMBRs(sorted);
+                for (int k = m; k <= sorted.size() - m; k++) {
+                    marginSum += prefix[k - 1].getMargin() + suffix[k].getMargin();
+                }
+            }
+            if (marginSum >= bestMarginSum) {
+                continue;
+            }
+
+            bestMarginSum = marginSum;
+            bestOverlap = Double.MAX_VALUE;
+            bestArea = Double.MAX_VALUE;
+            for (List<RTreeRecord> sorted : sortings) {
+                MBR[] prefix = prefixMBRs(sorted);
+                MBR[] suffix = suffixMBRs(sorted);
+                for (int k = m; k <= sorted.size() - m; k++) {
+                    double overlap = prefix[k - 1].calculateOverlap(suffix[k]);
+                    double area = prefix[k - 1].getArea() + suffix[k].getArea();
+                    if (overlap < bestOverlap || (overlap == bestOverlap && area < bestArea)) {
+                        bestOverlap = overlap;
+                        bestArea = area;
+                        bestSorted = sorted;
+                        bestSize = k;
+                    }
+                }
+            }
+        }
+
+        group1.addAll(bestSorted.subList(0, bestSize));
+        group2.addAll(bestSorted.subList(bestSize, bestSorted.size()));
+    }
+
+    private List<List<RTreeRecord>> sortingsAlongAxis(List<RTreeRecord> entries, int axis) {
+        List<RTreeRecord> byLow = new ArrayList<>(entries);
+        List<RTreeRecord> byHigh = new ArrayList<>(entries);
+        if (axis == 0) {
+            byLow.sort(Comparator.comparingDouble(record -> record.getMBR().getLow().getX()));
+            byHigh.sort(Comparator.comparingDouble(record -> record.getMBR().getHigh().getX()));
+        }
+        else {
+            byLow.sort(Comparator.comparingDouble(record -> record.getMBR().getLow().getY()));
+            byHigh.sort(Comparator.comparingDouble(record -> record.getMBR().getHigh().getY()));
+        }
+        return List.of(byLow, byHigh);
+    }
+
+    // prefix[i] covers entries 0..i
+    static MBR[] prefixMBRs(List<? extends RTreeRecord> sorted) {
+        MBR[] prefix = new MBR[sorted.size()];
+        prefix[0] = sorted.get(0).getMBR();
+        for (int i = 1; i < sorted.size(); i++) {
+            prefix[i] = prefix[i - 1].union(sorted.get(i).getMBR());
+        }
+        return prefix;
+    }
+
+    // suffix[i] covers entries i..n-1
+    static MBR[] suffixMBRs(List<? extends RTreeRecord> sorted) {
+        int n = sorted.size();
+        MBR[] suffix = new MBR[n];
+        suffix[n - 1] = sorted.get(n - 1).getMBR();
+        for (int i = n - 2; i >= 0; i--) {
+            suffix[i] = suffix[i + 1].union(sorted.get(i).getMBR());
+        }
+        return suffix;
+    }
+}
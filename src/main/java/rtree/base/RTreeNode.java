@@ -1,9 +1,16 @@
 package rtree.base;
 
 import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * Node in RTree, contains records. If leaf node, need to check if height equal to total tree height in RTree.java
+ * Child nodes keep the index of their record in the parent, so a parent can find the record of a child without
+ * scanning. The index is a hint, records lists changed directly are not tracked. The parent itself is not stored, as
+ * nodes are copied while adjusting a path and a stored parent would keep the outdated copies alive; the insertion
+ * path gives the parents.
+ * Records should only be changed through the methods of the node, as they keep the index of the children and the
+ * coordinate arrays used by MBRKernels up to date.
  *
  * @author Mari Sofie Lerfaldet <marisler@stud.ntnu.no>
  */
@@ -12,11 +19,14 @@ public abstract class RTreeNode {
     private int height;
     private MBR mbr;
     private ArrayList<RTreeRecord> records;
+    private int indexInParent = -1;
+    private volatile EntryCoordinates entryCoordinates; // built when first needed, cleared when records change
 
     public RTreeNode(int id, int height, ArrayList<RTreeRecord> records) {
         this.id = id;
         this.height = height;
         this.records = new ArrayList<>(records);
+        attachChildren(0);
 
         if (!records.isEmpty()) {
             calculateAndUpdateMBR();
@@ -33,31 +43,43 @@ public abstract class RTreeNode {
         this.height = node.getHeight();
         this.mbr = new MBR(node.getMbr());
         this.records = new ArrayList<>(node.getRecords());
+        this.indexInParent = node.indexInParent;
+        this.entryCoordinates = node.entryCoordinates;
     }
 
     public void addRecordAndReadjustMBR(RTreeRecord record) {
-        this.records.add(record);
+        addRecord(record);
         calculateAndUpdateMBR();
     }
 
     public void addRecord(RTreeRecord record) {
         this.records.add(record);
+        this.entryCoordinates = null;
+        attachChild(record, this.records.size() - 1);
     }
 
-    public void addMultipleRecords(ArrayList<RTreeRecord> records) {
+    public void addMultipleRecords(Collection<? extends RTreeRecord> records) {
+        int firstIndex = this.records.size();
         this.records.addAll(records);
+        this.entryCoordinates = null;
+        attachChildren(firstIndex);
     }
 
     public void updateRecord(int indexOfRecord, RTreeRecord updatedRecord) {
         this.records.set(indexOfRecord, updatedRecord);
+        this.entryCoordinates = null;
+        attachChild(updatedRecord, indexOfRecord);
     }
 
     public void removeRecord(int indexOfRecord) {
         this.records.remove(indexOfRecord);
+        this.entryCoordinates = null;
+        attachChildren(indexOfRecord);
     }
 
     public void clearRecords() {
         this.records.clear();
+        this.entryCoordinates = null;
     }
 
     public int getRecordCount() {
@@ -68,6 +90,58 @@ public abstract class RTreeNode {
         return this.records.indexOf(record);
     }
 
+    /**
+     * returns index of the record pointing to the given child, or -1 if this node has no record for it.
+     * Checks the index stored in the child first, and only scans the records if it is outdated
+     */
+    public int getChildIndex(RTreeNode child) {
+        int index = child.indexInParent;
+        if (index >= 0 && index < this.records.size()) {
+            RTreeNode candidate = this.records.get(index).getChild();
+            if (candidate != null && candidate.getId() == child.getId()) {
+                return index;
+            }
+        }
+
+        for (int i = 0; i < this.records.size(); i++) {
+            RTreeNode candidate = this.records.get(i).getChild();
+            if (candidate != null && candidate.getId() == child.getId()) {
+                child.indexInParent = i;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void attachChild(RTreeRecord record, int index) {
+        RTreeNode child = record.getChild();
+        if (child != null) {
+            child.indexInParent = index;
+        }
+    }
+
+    // updates index of the children of records from firstIndex and out, records of leaf nodes have no children
+    private void attachChildren(int firstIndex) {
+        if (this.height == 0) {
+            return;
+        }
+        for (int i = firstIndex; i < this.records.size(); i++) {
+            attachChild(this.records.get(i), i);
+        }
+    }
+
+    /**
+     * coordinates of the records as primitive arrays, used by MBRKernels
+     */
+    public EntryCoordinates getEntryCoordinates() {
+        EntryCoordinates coordinates = this.entryCoordinates;
+        if (coordinates == null) {
+            coordinates = new EntryCoordinates(this.records);
+            this.entryCoordinates = coordinates;
+        }
+        return coordinates;
+    }
+
     public ArrayList<RTreeRecord> getRecords() {
         return records;
     }
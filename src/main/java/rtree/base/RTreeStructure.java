@@ -1,16 +1,9 @@
 package rtree.base;
 
-import rtree.guttmann.GuttmannRTree;
-import rtree.guttmann.GuttmannRTreeNode;
-import rtree.guttmann.GuttmannRTreeRecord;
-import rtree.merging.MergeNode;
-import rtree.merging.MergeRecord;
-import rtree.merging.MergeTreeStructure;
-import rtree.seededClustering.SFCRTreeNode;
-import rtree.seededClustering.SFCRTreeRecord;
-import rtree.seededClustering.SFCRTreeStructure;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * RTree abstraction. Responsible for the structure of the RTree index, nodes and records.
@@ -28,9 +21,10 @@ public abstract class RTreeStructure {
     private final int m; //m <= M/2
     private final int M;
     private int height;
-    private static int nodeCounter = 0;
+    private static final AtomicInteger nodeCounter = new AtomicInteger(); // shared by trees built concurrently, ids must stay unique
     private RTreeNode root;
     private int splitCount = 0;
+    private SplitPolicy splitPolicy = new QuadraticSplit();
 
     public RTreeStructure(int dimensions, int m, int M){
         this.dimensions = dimensions;
@@ -47,12 +41,11 @@ public abstract class RTreeStructure {
 
     // need this test to be able to run tests at the same time
     public void restartCounter() {
-        nodeCounter = 0;
+        nodeCounter.set(0);
     }
 
     public int createNodeId() {
-        nodeCounter++;
-        return nodeCounter;
+        return nodeCounter.incrementAndGet();
     }
 
     public void setRoot(RTreeNode root){
@@ -86,55 +79,69 @@ public abstract class RTreeStructure {
         return this.dimensions;
     }
 
+    public SplitPolicy getSplitPolicy() {
+        return this.splitPolicy;
+    }
+
+    /**
+     * sets how overflowing nodes are split on insert, trading insert throughput against overlap between nodes
+     */
+    public void setSplitPolicy(SplitPolicy splitPolicy) {
+        this.splitPolicy = splitPolicy;
+    }
+
     /**
      * inserts one record into existing RTree. (one-by-one approach, based on insertion by Guttman)
      * finds placement that gives the least area enlargement, starting at root, moving top-down
      */
     public void insert(RTreeRecord record) {
+        insert(record, 0);
+    }
+
+    /**
+     * inserts a record into a node at the given height, 0 for leaf records. Records of subtrees are inserted at the
+     * height above their child, used when reinserting entries removed from a node
+     */
+    protected void insert(RTreeRecord record, int height) {
         RTreeNode insertionNode;
         ArrayDeque<RTreeNode> path = new ArrayDeque<>();
 
-        if (this.getHeight() == 0) {
+        if (this.getHeight() == height) {
             insertionNode = root;
         }
         else {
-            path = findInsertionPath(record, root, path);
+            path = findInsertionPath(record, root, path, height);
             insertionNode = path.pop();
         }
 
-        RTreeNode insertionNodeBefore = createNodeFromExistingNode(insertionNode);
         insertionNode.addRecordAndReadjustMBR(record);
 
-        if (this instanceof SFCRTreeStructure) {
-            insertionNode = new SFCRTreeNode(insertionNodeBefore.getId(), insertionNode.getHeight(), insertionNode.getRecords());
-        }
-
         if (insertionNode.getRecordCount() > M) {
-            performQuadraticSplitAndReadjustPath(insertionNode, path);
+            handleOverflow(insertionNode, path);
         }
         else {
-            adjustMBRsOnPath(insertionNode, insertionNodeBefore, path);
+            adjustMBRsOnPath(insertionNode, path);
         }
     }
 
+    /**
+     * called when a node gets more than M records while inserting, path holds the ancestors of the node.
+     * Splits the node, subclasses can handle overflow differently
+     */
+    protected void handleOverflow(RTreeNode node, ArrayDeque<RTreeNode> path) {
+        performSplitAndReadjustPath(node, path);
+    }
+
     /** recursive method that finds the node to insert into which creates the least area enlargement
      * returns path of nodes to follow, head of queue contains insertion node
      **/
-    private ArrayDeque<RTreeNode> findInsertionPath(RTreeRecord record, RTreeNode node, ArrayDeque<RTreeNode> path) {
-        double minAreaEnlargement = node.getRecords().get(0).getMBR().getAreaEnlargement(record.getMBR());
-        RTreeNode nextNode = node.getRecords().get(0).getChild();
+    private ArrayDeque<RTreeNode> findInsertionPath(RTreeRecord record, RTreeNode node, ArrayDeque<RTreeNode> path, int height) {
+        int selected = MBRKernels.leastEnlargement(node.getEntryCoordinates(), record.getMBR());
+        RTreeNode nextNode = node.getRecords().get(selected).getChild();
         path.push(node);
 
-        for (RTreeRecord treeRecord : node.getRecords()) {
-            double areaEnlargement = treeRecord.getMBR().getAreaEnlargement(record.getMBR());
-            if (areaEnlargement < minAreaEnlargement) {
-                minAreaEnlargement = areaEnlargement;
-                nextNode = treeRecord.getChild();
-            }
-        }
-
-        if (nextNode.getHeight() > 0) {
-            findInsertionPath(record, nextNode, path);
+        if (nextNode.getHeight() > height) {
+            findInsertionPath(record, nextNode, path, height);
         }
         else {
             path.push(nextNode);
@@ -142,9 +149,17 @@ public abstract class RTreeStructure {
         return path;
     }
 
-    protected void performQuadraticSplitAndReadjustPath(RTreeNode node, ArrayDeque<RTreeNode> path) {
+    protected void performSplitAndReadjustPath(RTreeNode node, ArrayDeque<RTreeNode> path) {
+        readjustPathAfterSplit(node, splitUntilFits(node), path);
+    }
+
+    /**
+     * splits the node until none of the resulting nodes has more than M records, without changing its ancestors.
+     * The node is left without records
+     */
+    protected ArrayList<RTreeNode> splitUntilFits(RTreeNode node) {
         ArrayList<RTreeNode> nodesAfterSplit = new ArrayList<>();
-        quadraticSplit(node, nodesAfterSplit);
+        split(node, nodesAfterSplit);
 
         boolean checkNodes = true;
         while (checkNodes) {
@@ -152,216 +167,135 @@ public abstract class RTreeStructure {
             int numberOfNodes = nodesAfterSplit.size();
             for(int i = 0; i < numberOfNodes; i++) {
                 if (nodesAfterSplit.get(i).getRecordCount() > this.getM()) {
-                    quadraticSplit(nodesAfterSplit.get(i), nodesAfterSplit);
+                    split(nodesAfterSplit.get(i), nodesAfterSplit);
                     nodesAfterSplit.remove(i);
                     checkNodes = true;
                 }
             }
         }
-
-
-        readjustPathAfterSplit(node, nodesAfterSplit, path);
+        return nodesAfterSplit;
     }
 
-    protected void quadraticSplit(RTreeNode node, ArrayList<RTreeNode> nodesAfterSplit) {
+    protected void split(RTreeNode node, ArrayList<RTreeNode> nodesAfterSplit) {
         //incrementSplitCount();
 
+        List<RTreeRecord> entries = new ArrayList<>(node.getRecords());
+        node.clearRecords();
+        List<RTreeRecord> group1 = new ArrayList<>();
+        List<RTreeRecord> group2 = new ArrayList<>();
+        splitPolicy.split(entries, this.getm(), group1, group2);
+
         RTreeNode node1 = createNodeWithoutRecords(node.getHeight());
         RTreeNode node2 = createNodeWithoutRecords(node.getHeight());
-
-        findAndAssignFirstRecords(node, node1, node2);
-
-        while(node.getRecordCount() > 0) {
-            if (node1.getRecordCount() + node.getRecordCount() == this.getm()) {
-                node1.addMultipleRecords(node.getRecords());
-                node.clearRecords();
-            }
-            else if (node2.getRecordCount() + node.getRecordCount() == this.getm()) {
-                node2.addMultipleRecords(node.getRecords());
-                node.clearRecords();
-            }
-
-            else{
-                findAndAssignNextRecord(node, node1, node2);
-            }
-        }
-
+        node1.addMultipleRecords(group1);
+        node2.addMultipleRecords(group2);
         node1.calculateAndUpdateMBR();
         node2.calculateAndUpdateMBR();
 
-        if (this instanceof SFCRTreeStructure) {
-            node1 = new SFCRTreeNode(node1.getId(), node1.getHeight(), node1.getRecords());
-            node2 = new SFCRTreeNode(node2.getId(), node2.getHeight(), node2.getRecords());
-        }
-
         nodesAfterSplit.add(node1);
         nodesAfterSplit.add(node2);
     }
 
-    protected void findAndAssignFirstRecords(RTreeNode node, RTreeNode node1, RTreeNode node2) {
-        double maxArea = 0;
-        int initialSplitRecordIndex1 = 0;
-        int initialSplitRecordIndex2 = 0;
-
-        for (int i = 0; i < node.getRecordCount(); i++){
-            for (int j = i + 1; j < node.getRecordCount(); j++){
-                RTreeRecord record1 = node.getRecords().get(i);
-                RTreeRecord record2 = node.getRecords().get(j);
-                double area = getAreaOfTwoMBRs(record1, record2);
-                if (maxArea < area){
-                    maxArea = area;
-                    initialSplitRecordIndex1 = i;
-                    initialSplitRecordIndex2 = j;
-                }
-            }
-        }
-
-        node1.addRecordAndReadjustMBR(node.getRecords().get(initialSplitRecordIndex1));
-        node2.addRecordAndReadjustMBR(node.getRecords().get(initialSplitRecordIndex2));
-
-        if (initialSplitRecordIndex1 < initialSplitRecordIndex2) {
-            node.removeRecord(initialSplitRecordIndex2);
-            node.removeRecord(initialSplitRecordIndex1);
-        }
-        else {
-            node.removeRecord(initialSplitRecordIndex1);
-            node.removeRecord(initialSplitRecordIndex2);
-        }
-    }
-
-    protected void findAndAssignNextRecord(RTreeNode node, RTreeNode node1, RTreeNode node2) {
-        double maxDiffAreaEnlargement = -1;
-        int indexNextRecord = 0;
-        double areaEnlargementSelectedRecordNode1 = 0;
-        double areaEnlargementSelectedRecordNode2 = 0;
-        for (RTreeRecord record : node.getRecords()) {
-            double areaEnlargementNode1 = node1.getMbr().getAreaEnlargement(record.getMBR());
-            double areaEnlargementNode2 = node2.getMbr().getAreaEnlargement(record.getMBR());
-            double diffAreaEnlargement = Math.abs(areaEnlargementNode1 - areaEnlargementNode2);
-            if (diffAreaEnlargement > maxDiffAreaEnlargement) {
-                maxDiffAreaEnlargement = diffAreaEnlargement;
-                indexNextRecord = node.getRecordIndex(record);
-                areaEnlargementSelectedRecordNode1 = areaEnlargementNode1;
-                areaEnlargementSelectedRecordNode2 = areaEnlargementNode2;
-            }
-        }
-
-        RTreeRecord recordToBeAdded = node.getRecords().get(indexNextRecord);
-        node.removeRecord(indexNextRecord);
-
-        if (areaEnlargementSelectedRecordNode1 <= areaEnlargementSelectedRecordNode2) {
-            node1.addRecordAndReadjustMBR(recordToBeAdded);
-        }
-        else {
-            node2.addRecordAndReadjustMBR(recordToBeAdded);
-        }
-    }
-
     protected abstract RTreeNode createNodeWithoutRecords(int height);
 
-    private void readjustPathAfterSplit(RTreeNode nodeBeforeSplit, ArrayList<RTreeNode> nodesAfterSplit, ArrayDeque<RTreeNode> path){
+    /**
+     * replaces the record pointing to the split node in its parent, the head of path, by records for the nodes after the
+     * split, splitting the parent and further ancestors if they overflow
+     */
+    protected void readjustPathAfterSplit(RTreeNode nodeBeforeSplit, ArrayList<RTreeNode> nodesAfterSplit, ArrayDeque<RTreeNode> path){
         if (path.isEmpty()) {
             createNewRootNode(nodesAfterSplit);
         }
         else{
             RTreeNode parent = path.pop();
 
-            int indexRecordToBeRemoved = -1;
-            for (RTreeRecord record : parent.getRecords()) {
-                if (record.getChild().getId() == nodeBeforeSplit.getId()) {
-                    indexRecordToBeRemoved = parent.getRecordIndex(record);
-                }
-            }
-
-            parent.removeRecord(indexRecordToBeRemoved);
+            parent.removeRecord(findChildIndex(parent, nodeBeforeSplit));
 
             for (RTreeNode node : nodesAfterSplit) {
                 parent.addRecord(createRecord(node));
             }
 
-            RTreeNode parentBeforeAreaEnlargement = createNodeFromExistingNode(parent);
             parent.calculateAndUpdateMBR();
 
-            if (this instanceof SFCRTreeStructure) {
-                parent = new SFCRTreeNode(parent.getId(), parent.getHeight(), parent.getRecords());
-            }
-
             if (parent.getRecordCount() <= getM()) {
-                adjustMBRsOnPath(parent, parentBeforeAreaEnlargement, path);
+                adjustMBRsOnPath(parent, path);
             }
             else {
-                performQuadraticSplitAndReadjustPath(parent, path);
+                handleOverflow(parent, path);
             }
         }
     }
 
     protected abstract RTreeRecord createRecord(RTreeNode node);
 
-    private double getAreaOfTwoMBRs(RTreeRecord record1, RTreeRecord record2) {
-        float xLow = Float.min(record1.getMBR().getLow().getX(), record2.getMBR().getLow().getX());
-        float yLow = Float.min(record1.getMBR().getLow().getY(), record2.getMBR().getLow().getY());
-        float xHigh = Float.max(record1.getMBR().getHigh().getX(), record2.getMBR().getHigh().getX());
-        float yHigh = Float.max(record1.getMBR().getHigh().getY(), record2.getMBR().getHigh().getY());
-
-        float[] low = {xLow, yLow};
-        float[] high = {xHigh, yHigh};
-
-        MBR mbr = new MBR(low, high);
+    /**
+     * updates the records pointing to the changed node and its ancestors on the path, in place. Stops at the first
+     * record that already points to its child with a matching MBR, as the MBRs further up do not change then, both
+     * when the node has grown and when it has shrunk
+     */
+    protected void adjustMBRsOnPath(RTreeNode node, ArrayDeque<RTreeNode> path) {
+        RTreeNode child = node;
+        while (!path.isEmpty()) {
+            RTreeNode parent = path.pop();
+            int index = findChildIndex(parent, child);
+            RTreeRecord record = parent.getRecords().get(index);
+            if (record.getChild() == child && !isChanged(record.getMBR(), child.getMbr())) {
+                return;
+            }
 
-        return mbr.getArea();
+            parent.updateRecord(index, createRecord(child));
+            parent.calculateAndUpdateMBR();
+            child = parent;
+        }
     }
 
-    protected void adjustMBRsOnPath(RTreeNode insertionNode, RTreeNode insertionNodeBefore, ArrayDeque<RTreeNode> path) {
-        RTreeNode adjustedNode = createNodeFromExistingNode(insertionNode);
-        boolean needsFurtherAdjusting = insertionNodeBefore.getMbr().getAreaEnlargement(adjustedNode.getMbr()) != 0;
+    // calculateAndUpdateMBR replaces the MBR of a node, so MBRs can be compared by coordinates
+    private static boolean isChanged(MBR before, MBR after) {
+        return before.getLow().getX() != after.getLow().getX() || before.getLow().getY() != after.getLow().getY()
+                || before.getHigh().getX() != after.getHigh().getX() || before.getHigh().getY() != after.getHigh().getY();
+    }
 
-        while(!path.isEmpty()) {
-            RTreeNode parent = path.pop();
-            int indexRecordToBeUpdated = -1;
-
-            while(indexRecordToBeUpdated == -1) {
-                for (RTreeRecord childRecord : parent.getRecords()) {
-                    if (childRecord.getChild().getId() == adjustedNode.getId()) {
-                        indexRecordToBeUpdated = parent.getRecordIndex(childRecord);
-                        break;
-                    }
-                }
-            }
+    public abstract RTreeNode createNodeFromExistingNode(RTreeNode insertionNode);
 
-            RTreeNode parentBeforeUpdate = createNodeFromExistingNode(parent);
-            RTreeRecord updatedRecord;
-            if (this instanceof GuttmannRTree) {
-                GuttmannRTreeNode adjNode = (GuttmannRTreeNode) adjustedNode;
-                updatedRecord = new GuttmannRTreeRecord(adjNode.getMbr(), adjNode);
-            } else if (this instanceof MergeTreeStructure) {
-                MergeNode mergeNode = (MergeNode) adjustedNode;
-                updatedRecord = new MergeRecord(mergeNode.getMbr(), mergeNode);
-            }
-            else {
-                SFCRTreeNode adjNode = (SFCRTreeNode) adjustedNode;
-                updatedRecord = new SFCRTreeRecord(adjNode.getMbr(), adjNode, adjNode.getLowX());
-            }
+    /**
+     * returns index of the record in parent pointing to child. A missing record means the path does not match the tree
+     */
+    protected int findChildIndex(RTreeNode parent, RTreeNode child) {
+        int index = parent.getChildIndex(child);
+        if (index == -1) {
+            throw new IllegalStateException("Node " + child.getId() + " has no record in node " + parent.getId());
+        }
+        return index;
+    }
 
-            parent.updateRecord(indexRecordToBeUpdated, updatedRecord);
+    /**
+     * finds all data objects overlapping the query, and adds them to results
+     * returns number of nodes accessed, used for comparing query cost of trees
+     */
+    public int search(MBR query, List<DataObject> results) {
+        return searchNode(this.root, query, results);
+    }
 
-            if (needsFurtherAdjusting) {
-                parent.calculateAndUpdateMBR();
+    private int searchNode(RTreeNode node, MBR query, List<DataObject> results) {
+        int nodesAccessed = 1;
+        boolean[] overlapping = new boolean[node.getRecordCount()];
+        MBRKernels.get().intersectionMask(node.getEntryCoordinates(), query, overlapping);
 
-                if (this instanceof  SFCRTreeStructure) {
-                    parent = new SFCRTreeNode(parent.getId(), parent.getHeight(), parent.getRecords());
+        for (int i = 0; i < overlapping.length; i++) {
+            if (overlapping[i]) {
+                RTreeRecord record = node.getRecords().get(i);
+                if (record.isLeaf()) {
+                    results.add(record.getData());
+                }
+                else {
+                    nodesAccessed += searchNode(record.getChild(), query, results);
                 }
-
-                needsFurtherAdjusting = parentBeforeUpdate.getMbr().getAreaEnlargement(parent.getMbr()) != 0;
             }
-
-            adjustedNode = createNodeFromExistingNode(parent);
         }
-        this.root = adjustedNode;
+        return nodesAccessed;
     }
 
-    public abstract RTreeNode createNodeFromExistingNode(RTreeNode insertionNode);
-
-    public void incrementSplitCount() {
+    public synchronized void incrementSplitCount() {
         this.splitCount ++;
     }
 
@@ -0,0 +1,48 @@
+package rtree.base;
+
+/**
+ * MBRKernels computing one entry at a time, over the primitive arrays of the node
+ */
+final class ScalarMBRKernels implements MBRKernels {
+
+    @Override
+    public void enlargedAreas(EntryCoordinates entries, MBR mbr, float[] result) {
+        float lowX = mbr.getLow().getX();
+        float lowY = mbr.getLow().getY();
+        float highX = mbr.getHigh().getX();
+        float highY = mbr.getHigh().getY();
+
+        for (int i = 0; i < entries.size(); i++) {
+            float width = Math.max(entries.highX[i], highX) - Math.min(entries.lowX[i], lowX);
+            float height = Math.max(entries.highY[i], highY) - Math.min(entries.lowY[i], lowY);
+            result[i] = width * height;
+        }
+    }
+
+    @Override
+    public void overlapAreas(EntryCoordinates entries, MBR mbr, float[] result) {
+        float lowX = mbr.getLow().getX();
+        float lowY = mbr.getLow().getY();
+        float highX = mbr.getHigh().getX();
+        float highY = mbr.getHigh().getY();
+
+        for (int i = 0; i < entries.size(); i++) {
+            float xOverlap = Math.max(0, Math.min(entries.highX[i], highX) - Math.max(entries.lowX[i], lowX));
+            float yOverlap = Math.max(0, Math.min(entries.highY[i], highY) - Math.max(entries.lowY[i], lowY));
+            result[i] = xOverlap * yOverlap;
+        }
+    }
+
+    @Override
+    public void intersectionMask(EntryCoordinates entries, MBR query, boolean[] result) {
+        float lowX = query.getLow().getX();
+        float lowY = query.getLow().getY();
+        float highX = query.getHigh().getX();
+        float highY = query.getHigh().getY();
+
+        for (int i = 0; i < entries.size(); i++) {
+            result[i] = entries.highX[i] > lowX && highX > entries.lowX[i]
+                    && entries.highY[i] > lowY && highY > entries.lowY[i];
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package rtree.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sort-Tile-Recursive packing of one level of an R-tree. Entries are sorted on x-center into vertical slices, and each
+ * slice is sorted on y-center and cut into nodes. Entries are spread evenly over slices and nodes, so no node gets fewer
+ * than M/2 entries when there is more than one node.
+ *
+ * Sorting uses Arrays.parallelSort over primitive keys. Each key holds the order-preserving bits of the coordinate in
+ * the upper half and the index of the entry in the lower half, so the sorted keys directly give the permutation.
+ */
+public final class SortTileRecursive {
+
+    private SortTileRecursive() {
+    }
+
+    /**
+     * @param centerX - x-center of each entry
+     * @param centerY - y-center of each entry
+     * @param M - max entries per node
+     * @return indices of the entries for each node, in packing order
+     */
+    public static List<int[]> tile(float[] centerX, float[] centerY, int M) {
+        int entryCount = centerX.length;
+        int nodeCount = (int) Math.ceil((double) entryCount / M);
+        int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+
+        int[] sortedOnX = sortIndices(centerX);
+        List<int[]> nodes = new ArrayList<>(nodeCount);
+
+        int sliceStart = 0;
+        for (int slice = 0; slice < sliceCount; slice++) {
+            int sliceSize = evenChunkSize(entryCount, sliceCount, slice);
+            if (sliceSize == 0) {
+                continue;
+            }
+
+            int[] sortedOnY = sortIndices(centerY, sortedOnX, sliceStart, sliceStart + sliceSize);
+            int nodesInSlice = (int) Math.ceil((double) sliceSize / M);
+            int nodeStart = 0;
+            for (int node = 0; node < nodesInSlice; node++) {
+                int nodeSize = evenChunkSize(sliceSize, nodesInSlice, node);
+                nodes.add(Arrays.copyOfRange(sortedOnY, nodeStart, nodeStart + nodeSize));
+                nodeStart += nodeSize;
+            }
+            sliceStart += sliceSize;
+        }
+        return nodes;
+    }
+
+    /**
+     * maps a float to an int with the same ordering when compared as signed ints
+     */
+    public static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    /**
+     * @return indices of the entries, sorted on the given coordinate
+     */
+    public static int[] sortIndices(float[] coordinates) {
+        return sortIndices(coordinates, null, 0, coordinates.length);
+    }
+
+    // sorts the entries indices[from..to) (or from..to when indices is null) on the given coordinate
+    private static int[] sortIndices(float[] coordinates, int[] indices, int from, int to) {
+        long[] keys = new long[to - from];
+        for (int i = from; i < to; i++) {
+            int index = indices == null ? i : indices[i];
+            keys[i - from] = ((long) sortableBits(coordinates[index]) << 32) | index;
+        }
+
+        Arrays.parallelSort(keys);
+
+        int[] sorted = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = (int) keys[i];
+        }
+        return sorted;
+    }
+
+    // size of chunk number i when splitting total entries into the given number of chunks, differing by at most one
+    private static int evenChunkSize(int total, int chunks, int i) {
+        return total / chunks + (i < total % chunks ? 1 : 0);
+    }
+}
@@ -0,0 +1,22 @@
+package rtree.base;
+
+import java.util.List;
+
+/**
+ * Distributes the entries of an overflowing node into two groups when the node is split.
+ * Selected per tree with RTreeStructure.setSplitPolicy, QuadraticSplit is used by default.
+ *
+ * LinearSplit and AngTanSplit run in linear time and give the highest insert throughput at large fan-out,
+ * QuadraticSplit and RStarSplit spend more time per split for less overlap between nodes, and so fewer nodes
+ * accessed per query.
+ */
+public interface SplitPolicy {
+
+    /**
+     * @param entries - entries of the node, M + 1 or more
+     * @param m - min entries in each group
+     * @param group1 - receives the entries of the first node
+     * @param group2 - receives the entries of the second node
+     */
+    void split(List<RTreeRecord> entries, int m, List<RTreeRecord> group1, List<RTreeRecord> group2);
+}
@@ -0,0 +1,121 @@
+package rtree.merging
+
+import kotlin.math.ln
+
+/**
+ * Bounds within which the AdaptiveTuner may move the size ratio of every level and the flush size of the MemTable.
+ */
+data class TuningBounds(
+    val minSizeRatio: Int,
+    val maxSizeRatio: Int,
+    val minFlushSize: Int,
+    val maxFlushSize: Int
+) {
+    init {
+        if (minSizeRatio < 2 || maxSizeRatio < minSizeRatio || minFlushSize < 2 || maxFlushSize < minFlushSize) {
+            throw IllegalArgumentException("Size ratios must be at least 2 and flush sizes at least 2, min <= max")
+        }
+    }
+}
+
+/**
+ * Costs measured by the merging LSM-tree since the last tuning, all in milliseconds. The merge time of a level is the
+ * time spent writing runs into the level, by flushes into the first level or by merges from the level above.
+ */
+class TuningWindow(
+    val mergeMillisPerLevel: DoubleArray,
+    val queryMillis: Double,
+    val memTableQueryMillis: Double
+)
+
+/**
+ * Online tuner of the size ratio of each level and the flush size of the MemTable of the merging LSM-tree.
+ *
+ * The measured costs are smoothed over the windows, and every tuning moves each knob one step where the cost model
+ * says the total cost of the measured mix of inserts and queries goes down:
+ * - A run on a level is rewritten by every run merged into it, so the merge time of the level grows in proportion to
+ *   its size ratio. A larger ratio covers more of the data on the level, and with fewer levels every insert is
+ *   rewritten fewer times and every query searches fewer runs. A ratio from r to r' saves ln(r' / r) / mean(ln r) of
+ *   the average cost of a level.
+ * - The first level is rewritten by every flush, so its merge time falls in proportion to the flush size. A MemTable
+ *   is searched by every query, at a cost growing with the log of its size.
+ *
+ * Write-heavy mixes, where merge time dominates, move the ratios down towards e, where the write cost T / ln T of a
+ * leveled LSM-tree is lowest, and the flush size up. Read-heavy mixes move the ratios up, cutting levels. A step is
+ * only taken if it saves more than MIN_GAIN of the total cost, so noise in the measurements does not move the knobs.
+ */
+class AdaptiveTuner(private val bounds: TuningBounds) {
+    private var mergeMillisPerLevel = DoubleArray(0)
+    private var queryMillis = 0.0
+    private var memTableQueryMillis = 0.0
+    private var windows = 0
+
+    /**
+     * Adds the window to the smoothed costs, and returns the new size ratios of the current levels and the new flush
+     * size.
+     */
+    fun tune(window: TuningWindow, sizeRatios: IntArray, flushSize: Int): Pair<IntArray, Int> {
+        smooth(window)
+        val levelCount = sizeRatios.size
+        val totalMillis = mergeMillisPerLevel.sum() + queryMillis
+        if (levelCount == 0 || totalMillis <= 0.0) {
+            return Pair(sizeRatios, flushSize)
+        }
+        val costPerLevel = totalMillis / levelCount
+        val meanLogRatio = sizeRatios.sumOf { ln(it.toDouble()) } / levelCount
+        val minGain = MIN_GAIN * totalMillis
+
+        val newRatios = IntArray(levelCount) { level ->
+            val ratio = sizeRatios[level]
+            val mergeMillis = mergeMillisPerLevel.getOrElse(level) { 0.0 }
+            var bestRatio = ratio
+            var bestChange = -minGain
+            for (candidate in listOf(ratio - 1, ratio + 1)) {
+                if (candidate < bounds.minSizeRatio || candidate > bounds.maxSizeRatio) {
+                    continue
+                }
+                val change = mergeMillis * (candidate.toDouble() / ratio - 1) -
+                    ln(candidate.toDouble() / ratio) / meanLogRatio * costPerLevel
+                if (change < bestChange) {
+                    bestChange = change
+                    bestRatio = candidate
+                }
+            }
+            bestRatio
+        }
+
+        var newFlushSize = flushSize
+        var bestChange = -minGain
+        val firstLevelMillis = mergeMillisPerLevel.getOrElse(0) { 0.0 }
+        for (candidate in listOf((flushSize * 0.8).toInt(), (flushSize * 1.25).toInt())) {
+            if (candidate < bounds.minFlushSize || candidate > bounds.maxFlushSize) {
+                continue
+            }
+            val change = firstLevelMillis * (flushSize.toDouble() / candidate - 1) +
+                memTableQueryMillis * (ln(candidate.toDouble()) / ln(flushSize.toDouble()) - 1)
+            if (change < bestChange) {
+                bestChange = change
+                newFlushSize = candidate
+            }
+        }
+        return Pair(newRatios, newFlushSize)
+    }
+
+    // exponential moving average over the windows, the first window is taken as it is
+    private fun smooth(window: TuningWindow) {
+        val weight = if (windows == 0) 1.0 else SMOOTHING
+        val levels = maxOf(mergeMillisPerLevel.size, window.mergeMillisPerLevel.size)
+        mergeMillisPerLevel = DoubleArray(levels) { level ->
+            val old = mergeMillisPerLevel.getOrElse(level) { 0.0 }
+            old + weight * (window.mergeMillisPerLevel.getOrElse(level) { 0.0 } - old)
+        }
+        queryMillis += weight * (window.queryMillis - queryMillis)
+        memTableQueryMillis += weight * (window.memTableQueryMillis - memTableQueryMillis)
+        windows++
+    }
+
+    companion object {
+        private const val SMOOTHING = 0.3
+        private const val MIN_GAIN = 0.01
+    }
+}
@@ -0,0 +1,157 @@
+package rtree.merging
+
+import rtree.base.DataObject
+import rtree.base.MBR
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * MemTable that skips building an R-tree while records arrive. Records are appended to flat coordinate arrays, split
+ * in stripes like the StripedMemTable so writers do not wait for each other. Queries scan the coordinate arrays, and
+ * when the MemTable is sealed the records are packed bottom-up into a MergeTreeStructure by bulkLoad.
+ *
+ * Appending is O(1) per record, compared to ChooseSubtree and quadratic split for every insert into an R-tree.
+ */
+class BufferedMemTable(
+    private val stripeCount: Int,
+    private val minRecords: Int,
+    private val maxRecords: Int,
+    expectedRecords: Int
+) : MemTable {
+    private val buffers = Array(stripeCount) { RecordBuffer(maxOf(16, expectedRecords / stripeCount + 1)) }
+    private val bufferLocks = Array(stripeCount) { ReentrantLock() }
+    private val insertedRecords = AtomicInteger(0)
+
+    @Volatile
+    private var sealedTree: MergeTreeStructure? = null
+
+    override val recordCount: Int
+        get() = insertedRecords.get()
+
+    override val splitCount: Int
+        get() = sealedTree?.splitCount ?: 0
+
+    override val flushed: Boolean
+        get() = sealedTree?.mergedAway == true
+
+    override fun insert(record: MergeRecord): Int {
+        val firstBuffer = (Thread.currentThread().id % stripeCount).toInt()
+        for (i in 0 until stripeCount) {
+            val buffer = (firstBuffer + i) % stripeCount
+            if (bufferLocks[buffer].tryLock()) {
+                try {
+                    buffers[buffer].add(record)
+                } finally {
+                    bufferLocks[buffer].unlock()
+                }
+                return insertedRecords.incrementAndGet()
+            }
+        }
+
+        bufferLocks[firstBuffer].withLock {
+            buffers[firstBuffer].add(record)
+        }
+        return insertedRecords.incrementAndGet()
+    }
+
+    /**
+     * Scans every buffer, or searches the packed tree once sealed. Each scanned buffer counts as one node accessed.
+     */
+    override fun search(mbr: MBR): Pair<List<DataObject>, Int> {
+        sealedTree?.let { tree ->
+            return tree.search(mbr)  // The tree locks itself against the merge it may be the target of
+        }
+
+        val searchResults = mutableListOf<DataObject>()
+        var nodesSearched = 0
+
+        for (i in 0 until stripeCount) {
+            bufferLocks[i].withLock {
+                if (buffers[i].size > 0) {
+                    buffers[i].scan(mbr, searchResults)
+                    nodesSearched += 1
+                }
+            }
+        }
+        return Pair(searchResults, nodesSearched)
+    }
+
+    /**
+     * Packs the buffered records of all stripes into one R-tree with bulkLoad.
+     */
+    override fun seal(): MergeTreeStructure {
+        sealedTree?.let { return it }
+
+        bufferLocks.forEach { it.lock() }
+        try {
+            val records = ArrayList<MergeRecord>(insertedRecords.get())
+            for (buffer in buffers) {
+                buffer.collectRecords(records)
+            }
+
+            val tree = MergeTreeStructure(2, minRecords, maxRecords)
+            tree.bulkLoad(records)
+            sealedTree = tree
+            return tree
+        } finally {
+            bufferLocks.forEach { it.unlock() }
+        }
+    }
+
+    /**
+     * Growable buffer of records, with the coordinates stored in primitive arrays so a scan is a tight loop over floats.
+     */
+    private class RecordBuffer(initialCapacity: Int) {
+        private var lowX = FloatArray(initialCapacity)
+        private var lowY = FloatArray(initialCapacity)
+        private var highX = FloatArray(initialCapacity)
+        private var highY = FloatArray(initialCapacity)
+        private var records = arrayOfNulls<MergeRecord>(initialCapacity)
+        var size = 0
+            private set
+
+        fun add(record: MergeRecord) {
+            if (size == records.size) {
+                grow()
+            }
+            val mbr = record.mbr
+            lowX[size] = mbr.low.x
+            lowY[size] = mbr.low.y
+            highX[size] = mbr.high.x
+            highY[size] = mbr.high.y
+            records[size] = record
+            size++
+        }
+
+        private fun grow() {
+            val capacity = records.size * 2
+            lowX = lowX.copyOf(capacity)
+            lowY = lowY.copyOf(capacity)
+            highX = highX.copyOf(capacity)
+            highY = highY.copyOf(capacity)
+            records = records.copyOf(capacity)
+        }
+
+        /**
+         * Same overlap test as MBR.isOverlapping, evaluated directly on the coordinate arrays.
+         */
+        fun scan(mbr: MBR, results: MutableList<DataObject>) {
+            val queryLowX = mbr.low.x
+            val queryLowY = mbr.low.y
+            val queryHighX = mbr.high.x
+            val queryHighY = mbr.high.y
+            for (i in 0 until size) {
+                if (highX[i] > queryLowX && queryHighX > lowX[i] && highY[i] > queryLowY && queryHighY > lowY[i]) {
+                    results.add(records[i]!!.data)
+                }
+            }
+        }
+
+        fun collectRecords(target: MutableList<MergeRecord>) {
+            for (i in 0 until size) {
+                target.add(records[i]!!)
+            }
+        }
+    }
+}
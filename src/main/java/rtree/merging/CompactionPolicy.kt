@@ -0,0 +1,63 @@
+package rtree.merging
+
+/**
+ * Decides how the runs of the merging LSM-tree are laid out over the levels. A run is one R-tree, and a level holds
+ * one or more runs. When a level is full, all its runs are merged into one run that moves to the next level.
+ *
+ * Merging into an existing run rewrites it, so policies keeping one run per level write more, while policies keeping
+ * several runs per level leave more trees for every query to search.
+ */
+interface CompactionPolicy {
+
+    /**
+     * Whether a run arriving at the level is merged into the run already on the level, instead of added as a new run.
+     */
+    fun mergesIntoExistingRun(level: Int, levelCount: Int): Boolean
+
+    /**
+     * Whether the runs of the level are to be merged and moved to the next level. The capacity is the number of
+     * records the level holds in a leveled LSM-tree, T^(level + 1) * memTableSize.
+     */
+    fun isFull(level: Int, levelCount: Int, runs: List<MergeTreeStructure>, capacity: Double): Boolean
+}
+
+/**
+ * One run per level, merged with every run arriving from above. Fewest trees to search, most records written.
+ */
+class LeveledCompaction : CompactionPolicy {
+    override fun mergesIntoExistingRun(level: Int, levelCount: Int): Boolean = true
+
+    override fun isFull(level: Int, levelCount: Int, runs: List<MergeTreeStructure>, capacity: Double): Boolean {
+        return runs.sumOf { it.recordCount } >= capacity
+    }
+}
+
+/**
+ * Size-tiered runs, each level collects runsPerLevel runs before they are merged together into one run on the next
+ * level. Every record is written once per level, but queries search up to runsPerLevel trees on each level.
+ */
+class TieredCompaction(private val runsPerLevel: Int) : CompactionPolicy {
+    override fun mergesIntoExistingRun(level: Int, levelCount: Int): Boolean = false
+
+    override fun isFull(level: Int, levelCount: Int, runs: List<MergeTreeStructure>, capacity: Double): Boolean {
+        return runs.size >= runsPerLevel
+    }
+}
+
+/**
+ * Lazy leveling over a fixed number of levels. The last level is leveled and is never full, so it takes in all growth
+ * of the data, while the levels above it are tiered with runsPerLevel runs each. Queries search at most
+ * (levels - 1) * (runsPerLevel - 1) + 1 trees, one fewer level of tiered runs than tiering over the same levels, while
+ * records are rewritten by leveled merges only once they reach the last level. Until the tree has reached the last
+ * level every level is tiered.
+ */
+class LazyLeveledCompaction(private val runsPerLevel: Int, private val levels: Int) : CompactionPolicy {
+    override fun mergesIntoExistingRun(level: Int, levelCount: Int): Boolean = level >= levels - 1
+
+    override fun isFull(level: Int, levelCount: Int, runs: List<MergeTreeStructure>, capacity: Double): Boolean {
+        if (level >= levels - 1) {
+            return false
+        }
+        return runs.size >= runsPerLevel
+    }
+}
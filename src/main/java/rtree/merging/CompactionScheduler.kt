@@ -0,0 +1,131 @@
+package rtree.merging
+
+import kotlinx.coroutines.CompletableJob
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import java.util.concurrent.Executors
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs the flushes and merges of the merging LSM-tree on its own pool of threads, so they do not compete with the
+ * writers and queries on Dispatchers.Default for more than flushWorkers + mergeWorkers threads.
+ *
+ * Flushes have priority FLUSH_PRIORITY and are run in order by the flush workers, which run nothing else, so a flush
+ * never waits for a long merge of a deep level to finish. The merge of a level has priority level + 1, and waiting
+ * merges are run by the merge workers lowest priority first, so the merge of a shallow level goes before the merge of
+ * a deeper one. Merges of equal priority are run in order of submission. A running task is never interrupted.
+ * Maintenance tasks have MAINTENANCE_PRIORITY and are run by the merge workers when no merge is waiting.
+ */
+class CompactionScheduler(flushWorkers: Int, mergeWorkers: Int) {
+    private val threadNumber = AtomicInteger()
+    private val executor = Executors.newFixedThreadPool(flushWorkers + mergeWorkers) { runnable ->
+        Thread(runnable, "compaction-${threadNumber.incrementAndGet()}").apply { isDaemon = true }
+    }
+    private val scope = CoroutineScope(executor.asCoroutineDispatcher() + SupervisorJob())
+
+    private val flushes = Channel<Task>(Channel.UNLIMITED)
+    private val merges = PriorityBlockingQueue<Task>()
+    private val mergeSubmitted = Channel<Unit>(Channel.UNLIMITED)  // One element per merge, taken by a free worker
+    private val submissionOrder = AtomicLong()
+    private val unfinishedTasks = MutableStateFlow(0)
+
+    private class Task(
+        val priority: Int,
+        val order: Long,
+        val block: suspend () -> Unit,
+        val job: CompletableJob
+    ) : Comparable<Task> {
+        override fun compareTo(other: Task): Int {
+            return if (priority != other.priority) priority.compareTo(other.priority) else order.compareTo(other.order)
+        }
+    }
+
+    init {
+        repeat(flushWorkers) {
+            scope.launch {
+                for (task in flushes) {
+                    run(task)
+                }
+            }
+        }
+        repeat(mergeWorkers) {
+            scope.launch {
+                for (signal in mergeSubmitted) {
+                    run(merges.poll() ?: continue)
+                }
+            }
+        }
+    }
+
+    private suspend fun run(task: Task) {
+        try {
+            task.block()
+            task.job.complete()
+        } catch (e: Throwable) {
+            task.job.completeExceptionally(e)
+        } finally {
+            unfinishedTasks.update { it - 1 }
+        }
+    }
+
+    /**
+     * Queues the block with the given priority, and returns a job completed when the block has run.
+     */
+    fun submit(priority: Int, block: suspend () -> Unit): Job {
+        val job = Job()
+        unfinishedTasks.update { it + 1 }
+        val task = Task(priority, submissionOrder.getAndIncrement(), block, job)
+        if (priority == FLUSH_PRIORITY) {
+            flushes.trySend(task)
+        } else {
+            merges.add(task)
+            mergeSubmitted.trySend(Unit)
+        }
+        return job
+    }
+
+    /**
+     * Runs the block on the compaction threads every intervalMillis, until the returned job is cancelled or the
+     * scheduler is shut down. The block is not a task, awaitIdle does not wait for it.
+     */
+    fun every(intervalMillis: Long, block: suspend () -> Unit): Job {
+        return scope.launch {
+            while (isActive) {
+                delay(intervalMillis)
+                block()
+            }
+        }
+    }
+
+    /**
+     * Stops the workers and the repeated blocks. Tasks not yet run are dropped.
+     */
+    fun shutdown() {
+        scope.cancel()
+        executor.shutdown()
+    }
+
+    /**
+     * Suspends until every submitted task has run, including tasks submitted by running tasks.
+     */
+    suspend fun awaitIdle() {
+        unfinishedTasks.first { it == 0 }
+    }
+
+    companion object {
+        const val FLUSH_PRIORITY = 0
+        const val MAINTENANCE_PRIORITY = Int.MAX_VALUE
+    }
+}
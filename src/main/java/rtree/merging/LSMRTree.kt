@@ -3,47 +3,128 @@ package rtree.merging
 import kotlinx.coroutines.*
 import rtree.base.DataObject
 import rtree.base.MBR
-import kotlin.math.pow
+import rtree.base.QuadraticSplit
+import rtree.base.SplitPolicy
 import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
 import kotlinx.coroutines.sync.withLock
-import kotlin.system.measureTimeMillis
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.DoubleAdder
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.system.measureNanoTime
 
 class LSMRTree(
     private val T: Int,
     private val minRecords: Int,
     private val maxRecords: Int,
-    private val memTableSize: Int
-) {
-    private var memTable: MergeTreeStructure = MergeTreeStructure(2, minRecords, maxRecords)
-    var ssTables: ArrayList<MergeTreeStructure> = ArrayList()
-    private val coroutineScope = CoroutineScope(Dispatchers.Default + SupervisorJob())
-
-    private val levelMergeLocks: MutableMap<Int, Mutex> = mutableMapOf()  // Per-level locks
-    private val mergeJobs: MutableMap<Int, Job> = mutableMapOf()
-    private val memTableJobs: MutableList<Job> = mutableListOf()
-
-    init {
-        memTable.createEmptyRoot()
+    private val memTableSize: Int,
+    private val writerStripes: Int = Runtime.getRuntime().availableProcessors(),
+    maxSealedMemTables: Int = 2,
+    flushWorkers: Int = 1,
+    mergeWorkers: Int = 2,
+    private val memTableMode: MemTableMode = MemTableMode.RTREE,
+    private val forcedReinsertion: Boolean = false,  // R* forced reinsertion in R-tree memTables
+    private val splitPolicy: SplitPolicy = QuadraticSplit(),  // Split of overflowing nodes in R-tree memTables
+    private val compactionPolicy: CompactionPolicy = LeveledCompaction(),
+    private val partialCompaction: Boolean = false,  // Move only the partitions of a full level touched by new data
+    private val parallelMerge: Boolean = true,  // Merge disjoint subtrees of large runs on all cores
+    private val rebuildMerges: Boolean = true,  // Rebuild runs by packing when predicted cheaper than mergeTrees
+    compactionRate: Double = 0.0,  // Records per second the merges may move between levels, 0 for no limit
+    writeSlowdownDebt: Long = T.toLong() * memTableSize,  // Merge debt from which writers are slowed down
+    writeStopDebt: Long = 16L * T * memTableSize,  // Merge debt from which writers are stopped
+    delayedWriteRate: Double = 10.0 * memTableSize,  // Records per second inserted while writers are slowed down
+    tuningBounds: TuningBounds? = null,  // Tune the size ratios and the flush size online within the bounds
+    repackThresholds: RepackThresholds? = null,  // Repack runs in the background whose sampled quality crosses these
+    repackIntervalMillis: Long = 1000  // Time between two samplings of the quality of the runs
+) : AutoCloseable {
+    // Records in a full MemTable, level capacities stay multiples of memTableSize whatever the flush size
+    @Volatile
+    private var flushSize = memTableSize
+
+    @Volatile
+    private var memTable: MemTable = createMemTable()
+    private val memTableSwapLock = ReentrantReadWriteLock()  // Writers share it, swapping the MemTable is exclusive
+    val ssTables = CopyOnWriteArrayList<CopyOnWriteArrayList<MergeTreeStructure>>()  // Runs of each level, oldest first
+
+    private val levelMergeLocks: ConcurrentHashMap<Int, Mutex> = ConcurrentHashMap()  // Per-level locks
+    private val queuedMerges: MutableSet<Int> = ConcurrentHashMap.newKeySet()  // Levels with a merge not yet started
+    // Runs a merge has taken from their level, they stay on it until the merged run is on the next level
+    private val compactingRuns: MutableSet<MergeTreeStructure> = ConcurrentHashMap.newKeySet()
+    private val memTableJobs: MutableList<Job> = CopyOnWriteArrayList()
+
+    private val sealedMemTables = ConcurrentLinkedDeque<MemTable>()  // Full MemTables waiting to be flushed
+    private val sealedMemTablePermits = Semaphore(maxSealedMemTables)
+
+    private val scheduler = CompactionScheduler(flushWorkers, mergeWorkers)
+    private val compactionLimiter = if (compactionRate > 0) TokenBucket(compactionRate, compactionRate) else null
+    private val writeController = WriteController(writeSlowdownDebt, writeStopDebt, delayedWriteRate)
+
+    private val timeSpentMerging = AtomicLong()
+    private val recordsFlushed = AtomicLong()
+    private val recordsWritten = AtomicLong()  // Records of every run written by a flush or merge
+    private val recordsCompacted = AtomicLong()  // Records moved from a level to the next
+    private val longestMergeMillis = AtomicLong()
+    private val treeMerges = AtomicLong()  // Runs merged into another by mergeTrees
+    private val rebuilds = AtomicLong()  // Runs merged into another by rebuilding it from the records of both
+    private val predictedOverlap = DoubleAdder()  // Summed over the merges the cost model was asked about
+
+    // MBRs of the partitions of the runs added to each level since the level was last compacted
+    private val incomingRegions: ConcurrentHashMap<Int, MutableList<MBR>> = ConcurrentHashMap()
+
+    // Size ratio of each level, levels beyond the array have the ratio of the last level, or T if it is empty
+    @Volatile
+    private var sizeRatios = IntArray(0)
+    private val tuner = tuningBounds?.let { AdaptiveTuner(it) }
+
+    // Costs measured for the tuner, in nanoseconds
+    private val levelMergeNanos: ConcurrentHashMap<Int, LongAdder> = ConcurrentHashMap()
+    private val queryNanos = LongAdder()
+    private val memTableQueryNanos = LongAdder()
+    private var tunedMergeNanos = LongArray(0)
+    private var tunedQueryNanos = 0L
+    private var tunedMemTableQueryNanos = 0L
+
+    // Quality maintenance, the sampled runs are only used by the maintenance task
+    private val sampledRuns = WeakHashMap<MergeTreeStructure, Long>()  // Modification count of each run when sampled
+    private val queuedRepacks: MutableSet<MergeTreeStructure> = ConcurrentHashMap.newKeySet()
+    private val repacks = AtomicLong()
+    private val discardedRepacks = AtomicLong()  // Repacks of runs changed while they were packed
+    private val maintenance = repackThresholds?.let { thresholds ->
+        scheduler.every(repackIntervalMillis) { sampleRuns(thresholds) }
     }
 
-    var timeSpentMerging = 0L
+    private fun createMemTable(): MemTable {
+        return when (memTableMode) {
+            MemTableMode.RTREE -> StripedMemTable(writerStripes, minRecords, maxRecords, forcedReinsertion, splitPolicy)
+            MemTableMode.BUFFER -> BufferedMemTable(writerStripes, minRecords, maxRecords, flushSize)
+        }
+    }
 
     /**
-     * Insert a data object into the MemTable of the LSM-tree
+     * Insert a data object into the MemTable of the LSM-tree. Safe to call from many writers at once, each writer
+     * inserts into a free stripe of the MemTable on its own thread.
      *
-     * If the MemTable is full, a merge operation is started
+     * If the MemTable is full, a merge operation is started. Before the insert the writer is slowed down or stopped by
+     * the write controller if the merges have fallen behind.
      */
     suspend fun insert(data: DataObject) {
+        writeController.beforeWrite()
         val low = floatArrayOf(data.lowX, data.lowY)
         val high = floatArrayOf(data.highX, data.highY)
         val record = MergeRecord(MBR(low, high), data)
 
-        withContext(Dispatchers.Default) {
+        val memTableRecordCount = memTableSwapLock.read {
             memTable.insert(record)
-            memTable.recordCount += 1
         }
 
-        if (memTable.recordCount >= memTableSize) {
+        if (memTableRecordCount >= flushSize) {
             merge()
         }
 
@@ -52,147 +133,526 @@ class LSMRTree(
     /**
      * Suspended function, running asynchronously, meaning merging the MemTable to the first level in the SSTable
      * is not done in real time, but is added to a queue of memtables waiting to be merged that runs asynchronously.
-     * This is done to avoid blocking, in case there is a lock on the first level of the SSTable.
+     * The full MemTable is sealed and its flush is queued on the compaction scheduler ahead of every merge, and inserts
+     * continue into a fresh MemTable.
      *
-     * After the merge is done, we also check the size of the first level of the SSTable to see if it needs to be merged further.
-     * In this case, the handleOverFlow function is called.
+     * At most maxSealedMemTables can wait to be flushed, if the flushes fall behind the writer suspends here until
+     * one of them is done.
      */
     private suspend fun merge() {
+        sealedMemTablePermits.acquire()
 
-        val memTableCopy = memTable.clone()
-        memTable = MergeTreeStructure(2, minRecords, maxRecords)
-        memTable.createEmptyRoot()
+        val fullMemTable = memTableSwapLock.write {
+            if (memTable.recordCount < flushSize) {
+                null  // Another writer already swapped out the full MemTable
+            } else {
+                val full = memTable
+                sealedMemTables.add(full)
+                memTable = createMemTable()
+                full
+            }
+        }
+        if (fullMemTable == null) {
+            sealedMemTablePermits.release()
+            return
+        }
 
+        val flushJob = scheduler.submit(CompactionScheduler.FLUSH_PRIORITY) {
+            try {
+                flush(fullMemTable)
+            } finally {
+                sealedMemTables.remove(fullMemTable)
+                sealedMemTablePermits.release()
+            }
+        }
+        memTableJobs.add(flushJob)
+        memTableJobs.removeIf { it.isCompleted }  // atomic on the CopyOnWriteArrayList, unlike removeAll
+    }
 
-        // Forslag - Ikke gjør dette i en annen coroutine
-        val memTableJob = coroutineScope.launch {
-            if (ssTables.isEmpty()) {
-                ssTables.add(memTableCopy)
-            } else if (ssTables[0].recordCount == 0) {
-                ssTables[0] = memTableCopy
+    /**
+     * Run by the compaction scheduler. Adds a sealed MemTable as a run to the first level in the SSTable, and removes it from
+     * the sealed MemTables once its records can be found in the first level. Whether the run is merged into the run
+     * already on the level is decided by the compaction policy. A new run is added and the MemTable removed under the
+     * MemTable swap lock, so a search finds the records in one of the two. When merged into the run on the level the
+     * MemTable counts as flushed from when the run is locked for the merge.
+     *
+     * After the run is added, we also check if the first level of the SSTable is full and needs to be merged further.
+     * In this case, the handleOverFlow function is called.
+     */
+    private suspend fun flush(sealedMemTable: MemTable) {
+        val memTableCopy = sealedMemTable.seal()
+
+        levelMergeLocks.getOrPut(0) { Mutex() }.withLock {
+            if (memTableCopy.recordCount > 0) {
+                recordsFlushed.addAndGet(memTableCopy.recordCount.toLong())
+                addRun(0, memTableCopy) { sealedMemTables.remove(sealedMemTable) }
             } else {
-                if (memTableCopy.root.mbr.lowX == 0) {
-                    print("Error")
-                }
-                levelMergeLocks.getOrPut(0) { Mutex() }.withLock {
-                    val time = measureTimeMillis {
-                        ssTables[0].mergeTrees(memTableCopy)
-                    }
-                    timeSpentMerging += time
-                }
+                memTableSwapLock.write { sealedMemTables.remove(sealedMemTable) }
+            }
+        }
+        if (isLevelFull(0)) {
+            handleOverFlow(0)
+        }
+        writeController.update(getMergeDebt())
+        tune()
+    }
 
+    /**
+     * Adds the run to the level, or merges it into the newest run on the level not being merged itself if the
+     * compaction policy says so. Must be called holding the lock of the level. removeSource takes the run from where it
+     * was searched so far, a sealed MemTable or the level above. It is run under the MemTable swap lock together with
+     * adding the run, so a search finds the records in one of the two, or after the merge, when the run is merged away.
+     */
+    private fun addRun(level: Int, run: MergeTreeStructure, removeSource: () -> Unit = {}) {
+        while (ssTables.size <= level) {
+            ssTables.add(CopyOnWriteArrayList())
+        }
+        val runs = ssTables[level]
+        run.parallelMerge = parallelMerge
+        if (partialCompaction) {
+            val regions = incomingRegions.getOrPut(level) { ArrayList() }
+            if (run.root.height == 0) {
+                regions.add(run.root.mbr)
+            } else {
+                run.root.records.mapTo(regions) { it.mbr }
             }
-            if (ssTables.size > 0 && ssTables[0].recordCount >= T * memTableSize) {
-                handleOverFlow(0)
+        }
+
+        val target = runs.lastOrNull { it !in compactingRuns }
+        if (target != null && compactionPolicy.mergesIntoExistingRun(level, ssTables.size)) {
+            mergeRun(level, target, run)
+            memTableSwapLock.write(removeSource)
+            recordsWritten.addAndGet(target.recordCount.toLong())
+        } else {
+            memTableSwapLock.write {
+                runs.add(run)
+                removeSource()
             }
+            recordsWritten.addAndGet(run.recordCount.toLong())
         }
+    }
 
-        memTableJob.join()
-        memTableJobs.add(memTableJob)
-        memTableJobs.removeAll { it.isCompleted }
+    /**
+     * Merges the run into the target, a run being written to the given level. With rebuildMerges the target chooses
+     * between mergeTrees and rebuilding itself from the records of both runs, by the cost model of estimateMerge.
+     */
+    private fun mergeRun(level: Int, target: MergeTreeStructure, run: MergeTreeStructure) {
+        val nanos = measureNanoTime {
+            if (rebuildMerges) {
+                val estimate = target.mergeOrRebuild(run)
+                (if (estimate.rebuild) rebuilds else treeMerges).incrementAndGet()
+                predictedOverlap.add(estimate.overlap)
+            } else {
+                target.mergeTrees(run)
+                treeMerges.incrementAndGet()
+            }
+        }
+        levelMergeNanos.getOrPut(level) { LongAdder() }.add(nanos)
+        val time = nanos / 1_000_000
+        timeSpentMerging.addAndGet(time)
+        longestMergeMillis.accumulateAndGet(time, ::maxOf)
     }
 
+    private fun isLevelFull(level: Int): Boolean {
+        if (ssTables.size <= level) {
+            return false
+        }
+        val runs = waitingRuns(level)
+        return runs.isNotEmpty() && compactionPolicy.isFull(level, ssTables.size, runs, levelCapacity(level))
+    }
+
+    // Runs of the level not taken by a merge
+    private fun waitingRuns(level: Int): List<MergeTreeStructure> = ssTables[level].filter { it !in compactingRuns }
+
+    private fun levelCapacity(level: Int): Double {
+        var capacity = memTableSize.toDouble()
+        for (i in 0..level) {
+            capacity *= getSizeRatio(i)
+        }
+        return capacity
+    }
+
+    fun getSizeRatio(level: Int): Int {
+        val ratios = sizeRatios
+        return if (ratios.isEmpty()) T else ratios[minOf(level, ratios.size - 1)]
+    }
+
+    fun getFlushSize(): Int = flushSize
+
     /**
-     * Handles merges for a specific level in the SSTable, 0 meaning that the first SSTable is being merged into the second.
-     * The Merge operation is done in a coroutine, performed in the performMerge function.
+     * Hands the costs measured since the last tuning to the tuner, and applies the size ratios and flush size it
+     * returns. A smaller ratio can make a level full, so the merges of full levels are queued afterwards. Called after
+     * every flush.
+     */
+    private fun tune() {
+        val tuner = tuner ?: return
+        synchronized(tuner) {
+            val levelCount = ssTables.size
+            val mergeNanos = LongArray(levelCount) { levelMergeNanos[it]?.sum() ?: 0L }
+            val query = queryNanos.sum()
+            val memTableQuery = memTableQueryNanos.sum()
+            val window = TuningWindow(
+                DoubleArray(levelCount) { (mergeNanos[it] - tunedMergeNanos.getOrElse(it) { 0L }) / 1e6 },
+                (query - tunedQueryNanos) / 1e6,
+                (memTableQuery - tunedMemTableQueryNanos) / 1e6
+            )
+            tunedMergeNanos = mergeNanos
+            tunedQueryNanos = query
+            tunedMemTableQueryNanos = memTableQuery
+
+            val (ratios, newFlushSize) = tuner.tune(window, IntArray(levelCount) { getSizeRatio(it) }, flushSize)
+            if (ratios.isNotEmpty()) {
+                sizeRatios = ratios
+            }
+            flushSize = newFlushSize
+        }
+        for (level in ssTables.indices) {
+            if (isLevelFull(level)) {
+                handleOverFlow(level)
+            }
+        }
+    }
+
+    /**
+     * Picks partitions of the single run on a full level to move to the next level, until the level is below
+     * (1 - 1 / r) of its capacity, r being the size ratio of the level. Partitions overlapping runs added to the level since it was last compacted, and
+     * partitions holding more than twice their share of the level capacity, are picked first, largest first, so the
+     * partitions of regions without new data stay where they are. The picked partitions are removed from the run and
+     * returned as a tree, or null if the whole run is to be moved. The tree is added to the level in one step with
+     * removing the partitions, under the MemTable swap lock, so the records stay on the level until the tree is moved.
      */
-    private suspend fun handleOverFlow(level: Int) {
-        mergeJobs[level]?.takeIf { it.isActive }?.join()
+    private fun removePartitionsToCompact(level: Int, run: MergeTreeStructure): MergeTreeStructure? {
+        val sizes = run.partitionSizes()
+        if (sizes.size < 2) {
+            return null
+        }
+        val capacity = levelCapacity(level)
+        val quota = 2 * capacity / sizes.size
+        val regions = incomingRegions[level].orEmpty()
+        val touched = sizes.indices.filter { index ->
+            sizes[index] > quota || regions.any { it.isOverlapping(run.root.records[index].mbr) }
+        }
+        val untouched = sizes.indices.filter { it !in touched }
+
+        val picked = ArrayList<Int>()
+        var sizeLeft = run.recordCount
+        for (index in touched.sortedByDescending { sizes[it] } + untouched.sortedByDescending { sizes[it] }) {
+            if (sizeLeft < capacity * (1 - 1.0 / getSizeRatio(level))) {
+                break
+            }
+            picked.add(index)
+            sizeLeft -= sizes[index]
+        }
+
+        if (picked.size == sizes.size) {
+            return null
+        }
+        return memTableSwapLock.write {
+            run.removePartitions(picked, sizes).also {
+                compactingRuns.add(it)
+                ssTables[level].add(it)
+            }
+        }
+    }
 
-        mergeJobs[level] = coroutineScope.launch {
-            performMerge(level)
+    /**
+     * Handles merges for a specific level in the SSTable, 0 meaning that the first SSTable is being merged into the second.
+     * The merge is queued on the compaction scheduler with the priority of the level, and performed in the performMerge
+     * function. A level has at most one merge waiting, as the merge takes all that is full on the level when it starts.
+     */
+    private fun handleOverFlow(level: Int) {
+        if (queuedMerges.add(level)) {
+            scheduler.submit(level + 1) {
+                queuedMerges.remove(level)
+                performMerge(level)
+            }
         }
     }
 
     /**
-     * makes a lock on the insert level and the target level, and performs a merge between the two R-trees. If the
-     * resulting R-tree larger than the threshold, the handleOverFlow function is called for the next level.
+     * makes a lock on the insert level and the target level, merges the runs of the insert level into one, and adds it
+     * to the target level as decided by the compaction policy. If the target level is then full, the handleOverFlow
+     * function is called for the next level.
+     *
+     * With a compaction rate, the records of the level are taken from the token bucket before the runs are taken from
+     * the level, so the merge waits while the level still takes in runs.
+     *
+     * The runs stay on the level while they are merged into the largest of them, searches skip each run once it is
+     * merged away. The merged run is then moved to the next level in one step with removing the runs from the level.
      */
     private suspend fun performMerge(level: Int) {
         val lock = levelMergeLocks.getOrPut(level) { Mutex() }
         val nextLock: Mutex = levelMergeLocks.getOrPut(level + 1) { Mutex() }
+        compactionLimiter?.acquire(waitingRuns(level).sumOf { it.recordCount }.toLong())
 
-        var ssTableCopy: MergeTreeStructure
+        val runs: List<MergeTreeStructure>
         lock.withLock {
-            ssTableCopy = ssTables[level].clone()
-            ssTables[level] = MergeTreeStructure(2, minRecords, maxRecords)
-            ssTables[level].createEmptyRoot()
-        }
-        if (ssTables.size > level + 1) {
-            if (ssTables[level + 1].recordCount == 0) {
-                ssTables[level + 1] = ssTableCopy
+            if (!isLevelFull(level)) {
+                return  // Already merged by an earlier job
+            }
+            val levelRuns = waitingRuns(level)
+            val partitions = if (partialCompaction && levelRuns.size == 1 &&
+                compactionPolicy.mergesIntoExistingRun(level + 1, maxOf(ssTables.size, level + 2))) {
+                removePartitionsToCompact(level, levelRuns[0])
             } else {
-                nextLock.withLock {
-                    val time = measureTimeMillis {
-                        ssTables[level + 1].mergeTrees(ssTableCopy)
+                null
+            }
+
+            runs = if (partitions != null) listOf(partitions) else levelRuns
+            compactingRuns.addAll(runs)
+            incomingRegions.remove(level)
+        }
+        writeController.update(getMergeDebt())
+        recordsCompacted.addAndGet(runs.sumOf { it.recordCount }.toLong())
+
+        // the smaller runs are merged into the largest
+        val mergedRun = runs.maxBy { it.recordCount }
+        for (run in runs) {
+            if (run !== mergedRun) {
+                mergeRun(level + 1, mergedRun, run)
+            }
+        }
+
+        nextLock.withLock {
+            addRun(level + 1, mergedRun) { ssTables[level].removeAll(runs) }
+        }
+        compactingRuns.removeAll(runs)
+
+        if (isLevelFull(level + 1)) {
+            handleOverFlow(level + 1)
+        }
+        writeController.update(getMergeDebt())
+    }
+
+    /**
+     * Run by the maintenance task. Samples the quality of every run changed since it was last sampled, and queues a
+     * repack of each run crossing the thresholds, after all flushes and merges.
+     */
+    private fun sampleRuns(thresholds: RepackThresholds) {
+        for (runs in ssTables) {
+            for (run in runs) {
+                val modifications = run.modificationCount
+                if (run.root.height == 0 || run in compactingRuns || sampledRuns[run] == modifications) {
+                    continue
+                }
+                sampledRuns[run] = modifications
+                if (thresholds.isDegraded(run.sampleQuality(REPACK_SAMPLE_SIZE)) && queuedRepacks.add(run)) {
+                    scheduler.submit(CompactionScheduler.MAINTENANCE_PRIORITY) {
+                        queuedRepacks.remove(run)
+                        compactionLimiter?.acquire(run.recordCount.toLong())
+                        if (repack(run)) {
+                            repacks.incrementAndGet()
+                        } else {
+                            discardedRepacks.incrementAndGet()
+                        }
                     }
-                    timeSpentMerging += time
                 }
             }
-        } else {
-            ssTables.add(ssTableCopy)
         }
+    }
 
+    /**
+     * Repacks the run off to the side and swaps it in, so it is searched and merged into meanwhile. The records are
+     * collected and the packed root swapped in holding the lock of the level the run is on, so the run can't be merged
+     * into another run meanwhile. Returns false, leaving the run to be sampled again, if the run was changed while it
+     * was packed, or has been merged away into another run before.
+     */
+    private suspend fun repack(run: MergeTreeStructure): Boolean {
+        val (records, modifications) = withLevelOf(run) { run.collectForRepack() } ?: return false
+        val packed = run.packCopy(records)
+        return withLevelOf(run) { run.swapPacked(packed, modifications) } ?: false
+    }
 
-        if (ssTables.size > level + 1 && ssTables[level + 1].recordCount >= T.toDouble()
-                .pow(level + 2) * memTableSize
-        ) {
-            handleOverFlow(level + 1)
+    /**
+     * Runs the block holding the lock of the level the run is on. Returns null without running it if the run is on no
+     * level, as it has been merged into another run, or is taken by a merge.
+     */
+    private suspend fun <R> withLevelOf(run: MergeTreeStructure, block: () -> R): R? {
+        while (true) {
+            val level = ssTables.indexOfFirst { runs -> runs.any { it === run } }
+            if (level < 0 || run in compactingRuns) {
+                return null
+            }
+            levelMergeLocks.getOrPut(level) { Mutex() }.withLock {
+                if (ssTables[level].any { it === run } && run !in compactingRuns) {
+                    return block()
+                }
+            }  // Moved to the next level before the lock was taken
         }
     }
 
     suspend fun waitForMerges() {
-        mergeJobs.values.forEach { it.join() }
+        scheduler.awaitIdle()
     }
 
     suspend fun waitForAllMerges() {
-        coroutineScope {
-            val allJobs = mergeJobs.values + memTableJobs  // Combine both lists
-            allJobs.map { async { it.join() } }.awaitAll()  // Wait for all to finish in parallel
-        }
+        scheduler.awaitIdle()  // Flushes and merges, including merges queued by other merges
     }
 
     suspend fun waitForMemTableMerges() {
-        memTableJobs.removeAll { it.isCompleted }  // Clean up completed jobs
+        memTableJobs.removeIf { it.isCompleted }  // Clean up completed jobs
         memTableJobs.forEach { it.join() }         // Ensure all pending jobs finish
     }
 
     suspend fun waitForMergeJobs() {
-        mergeJobs.values.removeAll { it.isCompleted }  // Clean up completed jobs
-        mergeJobs.values.forEach { it.join() }         // Ensure all pending jobs finish
+        scheduler.awaitIdle()  // A merge queues the merge of the next level before it completes
     }
 
 
     /**
      * Search for all data objects in the LSM-tree that intersect with the given MBR.
-     * The search is done in the MemTable and all SSTables.
+     * The search is done in the MemTable, the sealed MemTables not yet flushed and all SSTables.
+     *
+     * The MemTables and runs are taken under the MemTable swap lock, so a flushed MemTable is either among the
+     * MemTables or among the runs. MemTables flushed and runs merged away into another run are skipped, their records
+     * are found in that run. If one of them is merged while it is searched, it can't be told if the run it went into
+     * was searched before or after, and the search is repeated. The same goes for partitions removed from a run, which
+     * are found in a run of their own added after the snapshot.
      */
     fun search(mbr: MBR): Pair<List<DataObject>, Int> {
         val searchResults = mutableListOf<DataObject>()
         var nodesSearched = 0
+        var memTableNanos: Long
+
+        val start = System.nanoTime()
+        do {
+            searchResults.clear()
+            nodesSearched = 0
+            val (currentMemTables, currentRuns) = memTableSwapLock.read {
+                // toList() can fail when a flush removes one meanwhile
+                Pair(ArrayList(sealedMemTables).apply { add(memTable) }, ssTables.flatMap { ArrayList(it) })
+            }
+            val movesBefore = countMoves(currentMemTables, currentRuns)
 
-        for (ssTable in ssTables) {
+            for (ssTable in currentRuns) {
+                if (ssTable.mergedAway) {
+                    continue
+                }
                 val ssTableRes = ssTable.search(mbr)
                 nodesSearched += ssTableRes.second
                 searchResults.addAll(ssTableRes.first)
-        }
-        val memTableRes = memTable.search(mbr)
-        nodesSearched += memTableRes.second
-        searchResults.addAll(memTableRes.first)
+            }
+            val memTableStart = System.nanoTime()
+            for (currentMemTable in currentMemTables) {
+                if (currentMemTable.flushed) {
+                    continue
+                }
+                val memTableRes = currentMemTable.search(mbr)
+                nodesSearched += memTableRes.second
+                searchResults.addAll(memTableRes.first)
+            }
+            memTableNanos = System.nanoTime() - memTableStart
+        } while (countMoves(currentMemTables, currentRuns) != movesBefore)
 
+        queryNanos.add(System.nanoTime() - start)
+        memTableQueryNanos.add(memTableNanos)
         return Pair(searchResults, nodesSearched)
     }
 
+    private fun countMoves(memTables: List<MemTable>, runs: List<MergeTreeStructure>): Long =
+        memTables.count { it.flushed } + runs.count { it.mergedAway } + runs.sumOf { it.partitionRemovals }
+
     fun getRecordCount(): Int {
-        return memTable.recordCount + ssTables.sumOf { it.recordCount }
+        return memTable.recordCount + sealedMemTables.sumOf { it.recordCount } + liveRuns().sumOf { it.recordCount }
+    }
+
+    fun getSplitCount(): Int = liveRuns().sumOf { it.splitCount } + memTable.splitCount
+
+    fun getRunCount(): Int = liveRuns().size
+
+    // Runs of all levels, without runs merged into another one and not yet removed from their level
+    private fun liveRuns(): List<MergeTreeStructure> = ssTables.flatten().filter { !it.mergedAway }
+
+    /**
+     * Records moved from one level to the next per record flushed from the MemTable
+     */
+    fun getCompactionAmplification(): Double {
+        val flushed = recordsFlushed.get()
+        return if (flushed == 0L) 0.0 else recordsCompacted.get().toDouble() / flushed
+    }
+
+    /**
+     * Records written to runs by flushes and merges per record flushed from the MemTable. A merge into an existing run
+     * counts every record of the resulting run as written.
+     */
+    fun getWriteAmplification(): Double {
+        val flushed = recordsFlushed.get()
+        return if (flushed == 0L) 0.0 else recordsWritten.get().toDouble() / flushed
+    }
+
+    fun getSealedMemTableCount(): Int = sealedMemTables.size
+
+    fun getTreeMergeCount(): Long = treeMerges.get()
+
+    fun getTimeSpentMerging(): Long = timeSpentMerging.get()
+
+    fun getLongestMergeMillis(): Long = longestMergeMillis.get()
+
+    fun getRepackCount(): Long = repacks.get()
+
+    fun getDiscardedRepackCount(): Long = discardedRepacks.get()
+
+    fun getRebuildCount(): Long = rebuilds.get()
+
+    /**
+     * Average share of a merged run predicted by the cost model to overlap the run it was merged into
+     */
+    fun getAveragePredictedOverlap(): Double {
+        val merges = treeMerges.get() + rebuilds.get()
+        return if (!rebuildMerges || merges == 0L) 0.0 else predictedOverlap.sum() / merges
+    }
+
+    /**
+     * Records on full levels beyond the capacity of the level and the run from the level above that filled it, about
+     * capacity / r for a level with size ratio r, summed over the levels. Grows when merges of full levels wait while more runs are added to them.
+     */
+    fun getMergeDebt(): Long {
+        var debt = 0L
+        for (level in ssTables.indices) {
+            if (isLevelFull(level)) {
+                val allowed = levelCapacity(level) * (1 + 1.0 / getSizeRatio(level))
+                debt += maxOf(0L, waitingRuns(level).sumOf { it.recordCount } - allowed.toLong())
+            }
+        }
+        return debt
     }
 
-    fun getSplitCount(): Int = ssTables.sumOf { it.splitCount } + memTable.splitCount
+    /**
+     * Time writers spent slowed down or stopped by the write controller, summed over the writers
+     */
+    fun getWriteStallMillis(): Long = writeController.stalledMillis
+
+    fun getDelayedWriteCount(): Long = writeController.delayedWriteCount
 
     fun clear() {
-        memTable = MergeTreeStructure(2, minRecords, maxRecords)
-        memTable.createEmptyRoot()
+        memTable = createMemTable()
+        sealedMemTables.clear()
         ssTables.clear()
-        timeSpentMerging = 0L
+        compactingRuns.clear()
+        timeSpentMerging.set(0)
+        recordsFlushed.set(0)
+        recordsWritten.set(0)
+        recordsCompacted.set(0)
+        longestMergeMillis.set(0)
+        treeMerges.set(0)
+        rebuilds.set(0)
+        predictedOverlap.reset()
+        repacks.set(0)
+        discardedRepacks.set(0)
+        incomingRegions.clear()
+        writeController.reset()
+    }
+
+    /**
+     * Stops the maintenance task and the compaction threads. Flushes and merges not yet run are dropped, so
+     * waitForMergeJobs should be called first.
+     */
+    override fun close() {
+        maintenance?.cancel()
+        scheduler.shutdown()
+    }
+
+    companion object {
+        private const val REPACK_SAMPLE_SIZE = 64  // Descents to the leaves per sampling of a run
     }
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+package rtree.merging
+
+import rtree.base.DataObject
+import rtree.base.MBR
+
+/**
+ * MemTable of the merging LSM-tree. Receives records from many writers at once, and is sealed into a single R-tree
+ * when full. After sealing the MemTable is immutable and only answers searches until it has been merged into the
+ * first level.
+ */
+interface MemTable {
+    val recordCount: Int
+    val splitCount: Int
+
+    /**
+     * True once the sealed tree is merged into a run of the first level, set from when the run is locked for the merge.
+     * The records are then found in the run.
+     */
+    val flushed: Boolean
+
+    /**
+     * Inserts the record, and returns the record count of the MemTable after the insert.
+     */
+    fun insert(record: MergeRecord): Int
+
+    /**
+     * Returns the matching data objects and the number of nodes accessed.
+     */
+    fun search(mbr: MBR): Pair<List<DataObject>, Int>
+
+    /**
+     * Seals the MemTable into a single R-tree. Must only be called when no writer is using this MemTable anymore.
+     */
+    fun seal(): MergeTreeStructure
+}
+
+/**
+ * How the MemTable holds its records until flushed.
+ *
+ * RTREE inserts every record one-by-one into striped R-trees.
+ * BUFFER appends the records to flat coordinate arrays, which are scanned by queries and packed into an R-tree at flush.
+ */
+enum class MemTableMode {
+    RTREE,
+    BUFFER
+}
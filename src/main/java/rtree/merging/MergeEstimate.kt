@@ -0,0 +1,12 @@
+package rtree.merging
+
+/**
+ * Prediction of merging a tree into a run, made by MergeTreeStructure.estimateMerge from the root entries of the two
+ * trees. The costs are in entries visited: mergeCost for mergeTrees, rebuildCost for packing the records of both trees
+ * into a new tree with bulkLoad. The overlap is the predicted share of the inserted tree lying inside the run, which
+ * mergeTrees has to insert down to the leaves or leave as overlapping subtrees.
+ */
+class MergeEstimate(val mergeCost: Double, val rebuildCost: Double, val overlap: Double) {
+    val rebuild: Boolean
+        get() = rebuildCost < mergeCost
+}
@@ -2,16 +2,64 @@ package rtree.merging
 
 import rtree.base.*
 import rtree.utilities.ImportRealData
-import kotlin.math.floor
+import java.util.ArrayDeque
+import java.util.IdentityHashMap
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.math.ceil
+import kotlin.math.log2
 import kotlin.system.measureTimeMillis
 import kotlin.math.pow
+import kotlin.math.sqrt
+import kotlin.random.Random
 
 class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
     RTreeStructure(dimensions, m, M) {
     var recordCount = 0
-    private var nodesAccessed = 0
     var axisChosen = Pair(0, 0)
 
+    /**
+     * R*-tree forced reinsertion when inserting one record at a time. The first time a node overflows on a level
+     * during an insert, the reinsertFraction of its entries farthest from the center of the node are removed and
+     * inserted again, and the node is only split if it overflows again on that level.
+     */
+    var forcedReinsertion = false
+    var reinsertFraction = 0.3
+    var reinsertCount = 0
+    private val reinsertedHeights = HashSet<Int>()  // Levels that have had forced reinsertion in the current insert
+
+    // Searches share it. Merges, rebuilds, removals of partitions and repack swaps hold it exclusively for their whole
+    // length, so searches of a run wait while other runs are merged into it, and only the other runs stay searchable
+    private val searchLock = ReentrantReadWriteLock()
+
+    // Counts merges, rebuilds and removals of partitions, so a repack can tell if the tree was changed meanwhile
+    @Volatile
+    var modificationCount = 0L
+        private set
+
+    // Set when the tree is merged into another one, as soon as the other tree is locked for the merge. The records are
+    // then found in the other tree, and nodes of this tree may be changed as part of it
+    @Volatile
+    var mergedAway = false
+        private set
+
+    // Counts removals of partitions, taken from the tree before it is unlocked, so a search can tell if records have
+    // moved out of the tree meanwhile
+    @Volatile
+    var partitionRemovals = 0L
+        private set
+
+    /**
+     * Merges the subtrees of the children of a node in parallel, each child with entries in its insertion queue by its
+     * own task in the common ForkJoinPool. The subtrees of different children are disjoint, so only the parent they
+     * share is locked, when a split child is replaced by its nodes. Used when the inserted tree has at least
+     * PARALLEL_MERGE_THRESHOLD records, and only on nodes whose children are not leaves.
+     */
+    var parallelMerge = false
+    private var mergeInParallel = false
+
     override fun createNodeWithoutRecords(height: Int): MergeNode {
         return MergeNode(createNodeId(), height, ArrayList())
     }
@@ -71,160 +119,236 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
         }
     }
 
-    override fun getRoot(): MergeNode {
-        return super.getRoot() as MergeNode
+    override fun insert(record: RTreeRecord) {
+        reinsertedHeights.clear()
+        super.insert(record)
     }
 
-    private var hasNewRoot: Boolean = false
     /**
-     * Quadratic split equal to the one in RTreeStructure, amended to work with splitting multiple times at once.
+     * Reinserts instead of splitting on the first overflow on a level during an insert. The root is always split.
      */
-    private fun quadraticSplit(node: MergeNode): ArrayList<MergeNode> {
-        incrementSplitCount()
+    override fun handleOverflow(node: RTreeNode, path: ArrayDeque<RTreeNode>) {
+        if (!forcedReinsertion || path.isEmpty() || !reinsertedHeights.add(node.height)) {
+            super.handleOverflow(node, path)
+            return
+        }
+        reinsertFarthestEntries(node as MergeNode, path)
+    }
 
+    /**
+     * Removes the entries with centers farthest from the center of the node, adjusts the MBRs on the path to the
+     * shrunk node, and inserts the removed entries again on the same level, closest first (close reinsert in R*).
+     * Entries that were moved by a reinsertion earlier in the same insert are left in the node, so they are not
+     * moved back and forth.
+     */
+    private fun reinsertFarthestEntries(node: MergeNode, path: ArrayDeque<RTreeNode>) {
+        reinsertCount++
+        val centerX = (node.mbr.low.x + node.mbr.high.x) / 2.0
+        val centerY = (node.mbr.low.y + node.mbr.high.y) / 2.0
+        val reinsertLimit = minOf(maxOf(1, (node.recordCount * reinsertFraction).toInt()), node.recordCount - getm())
+
+        val byDistance = node.mergeRecords.sortedByDescending {
+            val dx = (it.mbr.low.x + it.mbr.high.x) / 2.0 - centerX
+            val dy = (it.mbr.low.y + it.mbr.high.y) / 2.0 - centerY
+            dx * dx + dy * dy
+        }
+        val reinserted = byDistance.filter { !it.hasBeenReinserted }.take(reinsertLimit)
+        if (reinserted.isEmpty()) {
+            super.handleOverflow(node, path)
+            return
+        }
 
-        val node1: MergeNode = createNodeWithoutRecords(node.height)
-        val node2: MergeNode = createNodeWithoutRecords(node.height)
+        val kept = node.mergeRecords.filter { record -> reinserted.none { it === record } }
+        node.clearRecords()
+        node.addMultipleRecords(kept)
+        node.calculateAndUpdateMBR()
+        adjustMBRsOnPath(node, path)
 
-        findAndAssignFirstRecords(node, node1, node2)
+        for (record in reinserted.asReversed()) {
+            record.hasBeenReinserted = true
+            insert(record, node.height)
+        }
+        for (record in reinserted) {
+            record.hasBeenReinserted = false
+        }
+    }
 
-        while (node.recordCount > 0) {
-            if (node1.recordCount + node.recordCount == this.getm()) {
-                node1.records.addAll(node.records)
-                node.clearRecords()
-            } else if (node2.recordCount + node.recordCount == this.getm()) {
-                node2.records.addAll(node.records)
-                node.clearRecords()
-            } else {
-                findAndAssignNextRecord(node, node1, node2)
-            }
+    /**
+     * Builds the R-tree bottom-up from leaf records by Sort-Tile-Recursive packing, replacing the current content.
+     * Each level is sorted on x-center into vertical slices, and each slice is sorted on y-center and cut into nodes.
+     * The records are spread evenly over the slices and nodes, so no node gets fewer than m entries.
+     */
+    fun bulkLoad(records: List<MergeRecord>) {
+        if (records.isEmpty()) {
+            createEmptyRoot()
+            this.recordCount = 0
+            return
         }
 
-        node1.calculateAndUpdateMBR()
-        node2.calculateAndUpdateMBR()
+        var entries: List<MergeRecord> = records
+        var height = 0
+        while (true) {
+            val nodes = packLevel(entries, height)
+            if (nodes.size == 1) {
+                this.root = nodes[0]
+                break
+            }
+            entries = nodes.map { createRecord(it) as MergeRecord }
+            height++
+        }
+        this.recordCount = records.size
+        modificationCount++
+    }
 
-        val result = ArrayList<MergeNode>()
+    private fun packLevel(entries: List<MergeRecord>, height: Int): ArrayList<MergeNode> {
+        val centerX = FloatArray(entries.size) { (entries[it].mbr.low.x + entries[it].mbr.high.x) / 2 }
+        val centerY = FloatArray(entries.size) { (entries[it].mbr.low.y + entries[it].mbr.high.y) / 2 }
 
-        if (node1.records.size > getM()) {
-            result.addAll(quadraticSplit(node1))
-        } else {
-            result.add(node1)
-        }
-        if (node2.records.size > getM()) {
-            result.addAll(quadraticSplit(node2))
-        } else {
-            result.add(node2)
+        val nodes = ArrayList<MergeNode>()
+        for (nodeEntries in SortTileRecursive.tile(centerX, centerY, getM())) {
+            val records = ArrayList<MergeRecord>(nodeEntries.size)
+            for (index in nodeEntries) {
+                records.add(entries[index])
+            }
+            nodes.add(MergeNode(createNodeId(), height, records))
         }
-
-        return result
+        return nodes
     }
 
+    override fun getRoot(): MergeNode {
+        return super.getRoot() as MergeNode
+    }
 
+    private var hasNewRoot: Boolean = false
     /**
+     * Splits an overfull node into ceil(n / M) nodes at once, n being the number of entries. The entries are cut
+     * along the split axis into slices of whole nodes, about sqrt of the node count, and each slice is cut along the
+     * other axis into nodes. The entries are sorted once on each axis, the order on the other axis is kept when the
+     * entries are divided into slices.
      *
-     * Sorts entries based on axises, currently limited to 2 axises, and finds which one to perform the
-     * split on based on the goodness values area, margin and overlap.
-     *
-     *
-     * Determines if the node should be split along the x or y axis, and then sorts the entries based on the axis.
-     * We then find the best split between l and L-l entries, where l is the minimum number of entries in a node and L
-     * is the maximum.
-     *
-     * l is given by l = (L * m) / (M + 1)
+     * The split axis is the one with the smallest sum of margins over all cuts into two, as in the R*-tree.
      */
-    private fun chooseSplitAxis(node: MergeNode, parent: MergeNode?, prevSplitAxis: Int = 0): ArrayList<MergeNode> {
+    private fun multiWaySplit(node: MergeNode): ArrayList<MergeNode> {
         incrementSplitCount()
-        var bestSplit: Pair<Int, Int>? = null
-        //var bestGoodness = Double.MAX_VALUE
-        var bestGoodness: Triple<Double, Double, Double> = Triple(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE)
-
         val entries = node.mergeRecords
-        val m = getm()
-        val M = getM()
-        val l: Int = floor(((entries.size * m) / (M + 1)).toDouble()).toInt()
-
-        val sortedEntriesX: List<MergeRecord>
-        val sortedEntriesY: List<MergeRecord>
-        if (prevSplitAxis == 0) {
-            sortedEntriesX = entries.sortedBy { it.mbr.low.x }
-            sortedEntriesY = entries.sortedBy { it.mbr.low.y }
-        } else {
-            sortedEntriesY = entries.sortedBy { it.mbr.low.y }
-            sortedEntriesX = entries.sortedBy { it.mbr.low.x }
+        val nodeCount = (entries.size + getM() - 1) / getM()
+        val sliceCount = ceil(sqrt(nodeCount.toDouble())).toInt()
+        val nodesPerSlice = IntArray(sliceCount) { nodeCount / sliceCount + if (it < nodeCount % sliceCount) 1 else 0 }
+
+        val sortedEntriesX = entries.sortedBy { it.mbr.low.x }
+        val sortedEntriesY = entries.sortedBy { it.mbr.low.y }
+        val axis = if (marginSum(sortedEntriesX) <= marginSum(sortedEntriesY)) 0 else 1
+        synchronized(this) {
+            axisChosen = if (axis == 0) {
+                Pair(axisChosen.first + 1, axisChosen.second)
+            } else {
+                Pair(axisChosen.first, axisChosen.second + 1)
+            }
         }
+        val sortedAlongAxis = if (axis == 0) sortedEntriesX else sortedEntriesY
+        val sortedAcrossAxis = if (axis == 0) sortedEntriesY else sortedEntriesX
 
+        val sliceOfEntry = IdentityHashMap<MergeRecord, Int>()
+        for ((slice, sliceEntries) in cut(sortedAlongAxis, nodesPerSlice).withIndex()) {
+            for (entry in sliceEntries) {
+                sliceOfEntry[entry] = slice
+            }
+        }
+        val slices = List(sliceCount) { ArrayList<MergeRecord>() }
+        for (entry in sortedAcrossAxis) {
+            slices[sliceOfEntry[entry]!!].add(entry)
+        }
 
+        val nodesAfterSplit = ArrayList<MergeNode>()
+        for ((slice, sliceEntries) in slices.withIndex()) {
+            for (nodeEntries in cut(sliceEntries, IntArray(nodesPerSlice[slice]) { 1 })) {
+                val newNode: MergeNode = createNodeWithoutRecords(node.height)
+                newNode.addMultipleRecords(nodeEntries)
+                newNode.calculateAndUpdateMBR()
+                nodesAfterSplit.add(newNode)
+            }
+        }
+        return nodesAfterSplit
+    }
 
-        for (axis in 0..1) {
-            val sortedEntries = if (axis == 0) sortedEntriesX else sortedEntriesY
+    /**
+     * Cuts sorted entries into consecutive parts, part i holding nodesPerPart[i] nodes of m to M entries. Each cut is
+     * placed where the entries before it overlap least with the entries after it, ties going to the least total area,
+     * among the cuts that leave room for the remaining parts. The MBR of the entries after every cut is found in one
+     * pass backwards, and the MBR of the part is grown one entry at a time, so all cuts are evaluated in linear time.
+     */
+    private fun cut(sorted: List<MergeRecord>, nodesPerPart: IntArray): List<List<MergeRecord>> {
+        val suffixMBRs = suffixMBRs(sorted)
+        val parts = ArrayList<List<MergeRecord>>(nodesPerPart.size)
+        var start = 0
+        var nodesAfter = nodesPerPart.sum()
+
+        for (nodes in nodesPerPart) {
+            nodesAfter -= nodes
+            if (nodesAfter == 0) {
+                parts.add(sorted.subList(start, sorted.size))
+                break
+            }
 
-            var leftMBR = boundingBox(ArrayList(sortedEntries.subList(0, l)))
-            var rightMBR = boundingBox(ArrayList(sortedEntries.subList(l, sortedEntries.size)))
+            val remaining = sorted.size - start
+            val minSize = maxOf(nodes * getm(), remaining - nodesAfter * getM())
+            val maxSize = minOf(nodes * getM(), remaining - nodesAfter * getm())
+            var partMBR = sorted[start].mbr
+            for (i in start + 1 until start + minSize) {
+                partMBR = partMBR.union(sorted[i].mbr)
+            }
 
-            for (k in (l until (entries.size - l))) {
-                if (k > l) {
-                    leftMBR = computeMBR(listOf(leftMBR, sortedEntries[k - 1].mbr))
-                    val rightEntries = ArrayList(sortedEntries.subList(k + 1, sortedEntries.size))
-                    rightMBR = boundingBox(rightEntries)
+            var bestSize = minSize
+            var bestOverlap = Double.MAX_VALUE
+            var bestArea = Double.MAX_VALUE
+            for (size in minSize..maxSize) {
+                if (size > minSize) {
+                    partMBR = partMBR.union(sorted[start + size - 1].mbr)
                 }
-
-                val areaValue = leftMBR.area + rightMBR.area
-                val marginValue = (leftMBR.margin + rightMBR.margin).toDouble()
-                val overlapValue = overlap(leftMBR, rightMBR).toDouble()
-                //val goodness = areaValue - overlapValue.toDouble() - marginValue.toDouble()
-                val goodness = Triple(overlapValue, areaValue, marginValue)
-
-                /*if (goodness < bestGoodness) {
-                    bestGoodness = goodness
-                    bestSplit = Pair(axis, k)
-                }*/
-                if (goodness.first < bestGoodness.first ||
-                    (goodness.first == bestGoodness.first && goodness.second < bestGoodness.second) ||
-                    (goodness.first == bestGoodness.first && goodness.second == bestGoodness.second && goodness.third < bestGoodness.third)) {
-                    bestGoodness = goodness
-                    bestSplit = Pair(axis, k)
+                val restMBR = suffixMBRs[start + size]
+                val overlap = partMBR.calculateOverlap(restMBR)
+                val area = partMBR.area + restMBR.area
+                if (overlap < bestOverlap || (overlap == bestOverlap && area < bestArea)) {
+                    bestOverlap = overlap
+                    bestArea = area
+                    bestSize = size
                 }
-
             }
-        }
 
-        val axis = bestSplit!!.first
-        axisChosen = if (axis == 0) {
-            Pair(axisChosen.first + 1, axisChosen.second)
-        } else {
-            Pair(axisChosen.first, axisChosen.second + 1)
+            parts.add(sorted.subList(start, start + bestSize))
+            start += bestSize
         }
-        val k = bestSplit.second
-        val finalSortedEntries = if (axis == 0) sortedEntriesX else sortedEntriesY
-        val leftEntries = ArrayList(finalSortedEntries.subList(0, k))
-        val rightEntries = ArrayList(finalSortedEntries.subList(k, finalSortedEntries.size))
-
-        val node1: MergeNode = createNodeWithoutRecords(node.height)
-        val node2: MergeNode = createNodeWithoutRecords(node.height)
-        node1.records.addAll(leftEntries)
-        node2.records.addAll(rightEntries)
-        node1.calculateAndUpdateMBR()
-        node2.calculateAndUpdateMBR()
+        return parts
+    }
 
-        val nodesAfterSplit = ArrayList<MergeNode>()
-        if (node1.records.size > M) {
-            nodesAfterSplit.addAll(chooseSplitAxis(node1, parent, axis))
-        } else {
-            nodesAfterSplit.add(node1)
+    /**
+     * Sum of the margins of both groups over every cut of the sorted entries into two groups of at least m entries
+     */
+    private fun marginSum(sorted: List<MergeRecord>): Double {
+        val suffixMBRs = suffixMBRs(sorted)
+        var prefixMBR = sorted[0].mbr
+        var marginSum = 0.0
+        for (k in 1..sorted.size - getm()) {
+            if (k >= getm()) {
+                marginSum += prefixMBR.margin + suffixMBRs[k].margin
+            }
+            prefixMBR = prefixMBR.union(sorted[k].mbr)
         }
-        if (node2.records.size > M) {
-            nodesAfterSplit.addAll(chooseSplitAxis(node2, parent, axis))
-        } else {
-            nodesAfterSplit.add(node2)
+        return marginSum
+    }
+
+    // suffixMBRs[i] covers sorted entries i until the end
+    private fun suffixMBRs(sorted: List<MergeRecord>): Array<MBR> {
+        val suffixMBRs = Array(sorted.size) { sorted[it].mbr }
+        for (i in sorted.size - 2 downTo 0) {
+            suffixMBRs[i] = suffixMBRs[i + 1].union(sorted[i].mbr)
         }
-        return nodesAfterSplit
+        return suffixMBRs
     }
 
     /**
-     * Splitting method for multiple split. If the node has more than M entries, it is split into two nodes.
-     * The split axis is determined by the chooseSplitAxis method, giving us two nodes to split further if needed.
-     * The chooseSplitAxis method is called recursively until all nodes have less than M entries. The resulting nodes
-     * are then added to the parent nodes local insertion queue.
+     * Splitting method for multiple split. If the node has more than M entries, it is split into ceil(n / M) nodes at
+     * once by the multiWaySplit method. The resulting nodes are then added to the parent nodes local insertion queue.
      */
     private fun multipleSplit(node: MergeNode, parent: MergeNode? = null) {
         val numEntries = node.records.size
@@ -234,7 +358,7 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
             resultingNode.add(node)
             return
         }
-        val nodesAfterSplit = chooseSplitAxis(node, parent)
+        val nodesAfterSplit = multiWaySplit(node)
 
         if (parent == null) {
             replaceRootNode(nodesAfterSplit)
@@ -244,25 +368,11 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
                 val newRecord = createRecord(newNode) as MergeRecord
                 parent.localInsertionQueue.add(newRecord)
             }
-            parent.records.removeIf { it.child?.id == node.id }
-        }
-
-    }
-
-    /**
-     * Finds and returns all leaf records at the bottom of a subtree
-     */
-    private fun findLeafRecords(node: MergeNode): ArrayList<MergeRecord> {
-        val leafRecords = ArrayList<MergeRecord>()
-        for (record in node.mergeRecords) {
-            if (record.isLeaf) {
-                leafRecords.add(record)
-                record.hasBeenReinserted = true
-            } else {
-                leafRecords.addAll(findLeafRecords(record.child as MergeNode))
+            synchronized(parent) {  // siblings may be split at the same time in a parallel merge
+                parent.removeRecord(findChildIndex(parent, node))
             }
         }
-        return leafRecords
+
     }
 
     /**
@@ -310,6 +420,44 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
         return xOverlap * yOverlap
     }
 
+    /**
+     * Number of leaf records below each entry of the root. The subtrees of the root entries are the spatial
+     * partitions of the tree, a leaf root has none.
+     */
+    fun partitionSizes(): IntArray {
+        if (root.height == 0) {
+            return IntArray(0)
+        }
+        return IntArray(root.recordCount) { countLeafRecords(root.mergeRecords[it].child!!) }
+    }
+
+    /**
+     * Removes the partitions at the given indices among the root entries, and returns them as a tree of their own
+     * with the same height. At least one partition must be left in this tree.
+     */
+    fun removePartitions(indices: Collection<Int>, sizes: IntArray): MergeTreeStructure {
+        val removedRecords = ArrayList<MergeRecord>()
+        var removedCount = 0
+        searchLock.write {
+            partitionRemovals++
+            for (index in indices.sortedDescending()) {
+                removedRecords.add(root.mergeRecords[index])
+                removedCount += sizes[index]
+                root.removeRecord(index)
+            }
+            root.calculateAndUpdateMBR()
+            this.recordCount -= removedCount
+            modificationCount++
+        }
+
+        val partitions = clone()
+        val partitionsRoot = MergeNode(createNodeId(), root.height, removedRecords)
+        partitionsRoot.calculateAndUpdateMBR()
+        partitions.root = partitionsRoot
+        partitions.recordCount = removedCount
+        return partitions
+    }
+
     /**
      * Top level method of merging two R-trees. The records of the insert trees root node are
      * added to the insertion queue of the target tree. The records in the
@@ -318,8 +466,10 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
      *
      * TODO: Sjekk om dette gir mening, kjører insertTrees nok ganger om jeg splitter root node mer enn en gang?
      */
-    fun mergeTrees(insertTree: MergeTreeStructure, reinsertion: Boolean = false) {
-
+    fun mergeTrees(insertTree: MergeTreeStructure, reinsertion: Boolean = false) = searchLock.write {
+        modificationCount++
+        insertTree.mergedAway = true
+        mergeInParallel = parallelMerge && insertTree.recordCount >= PARALLEL_MERGE_THRESHOLD
         for (record in insertTree.root.mergeRecords) {
             this.root.insertionQueue.add(record)
         }
@@ -334,6 +484,116 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
         this.splitCount += insertTree.splitCount
     }
 
+    /**
+     * Predicts the costs of merging the tree into this one with mergeTrees, and of rebuilding this tree from the
+     * records of both with bulkLoad, from the root entries of the two trees.
+     *
+     * The overlap is the share of each inserted root entry covered by the root entries of this tree, averaged over the
+     * inserted root entries. An entry without area counts as covered if it overlaps any of them. mergeTrees splits up
+     * covered entries down to their records, and each record visits about (h + 1) * M entries in a tree of height h,
+     * the last M for the split of the leaf it ends in. Entries not covered are inserted as whole subtrees. A rebuild
+     * sorts all n records about log2(n) times over the levels. Measured on clustered points, an entry visited by
+     * mergeTrees takes about as long as a step of the sort.
+     */
+    fun estimateMerge(insertTree: MergeTreeStructure): MergeEstimate {
+        val insertEntries = insertTree.root.mergeRecords
+        if (insertEntries.isEmpty() || root.records.isEmpty()) {
+            return MergeEstimate(0.0, 0.0, 0.0)
+        }
+
+        val targetEntries = root.entryCoordinates
+        val overlaps = FloatArray(targetEntries.size())
+        var covered = 0.0
+        for (entry in insertEntries) {
+            val area = entry.mbr.area
+            covered += if (area > 0) {
+                MBRKernels.get().overlapAreas(targetEntries, entry.mbr, overlaps)
+                minOf(1.0, overlaps.sumOf { it.toDouble() } / area)
+            } else if (root.records.any { it.mbr.isOverlapping(entry.mbr) }) {
+                1.0
+            } else {
+                0.0
+            }
+        }
+        val overlap = covered / insertEntries.size
+
+        val pathCost = (root.height + 1.0) * getM()
+        val mergeCost = (overlap * insertTree.recordCount + (1 - overlap) * insertEntries.size) * pathCost
+        val recordsAfter = (this.recordCount + insertTree.recordCount).toDouble()
+        val rebuildCost = recordsAfter * log2(recordsAfter)
+        return MergeEstimate(mergeCost, rebuildCost, overlap)
+    }
+
+    /**
+     * Merges the tree into this one with mergeTrees, or rebuilds this tree from the records of both with bulkLoad when
+     * estimateMerge predicts the rebuild to be cheaper. Returns the estimate the choice was made from.
+     */
+    fun mergeOrRebuild(insertTree: MergeTreeStructure): MergeEstimate = searchLock.write {
+        val estimate = estimateMerge(insertTree)
+        if (estimate.rebuild) {
+            rebuildWith(insertTree)
+        } else {
+            mergeTrees(insertTree)
+        }
+        estimate
+    }
+
+    /**
+     * Replaces the content of this tree by the leaf records of this tree and the inserted tree, packed by bulkLoad.
+     * The inserted tree is left as it is.
+     */
+    fun rebuildWith(insertTree: MergeTreeStructure) = searchLock.write {
+        insertTree.mergedAway = true
+        val records = ArrayList<MergeRecord>(this.recordCount + insertTree.recordCount)
+        collectLeafRecords(root, records)
+        collectLeafRecords(insertTree.root, records)
+        bulkLoad(records)
+        this.splitCount += insertTree.splitCount
+    }
+
+    /**
+     * Collects the leaf records of the tree for a repack, together with the modification count they were collected at.
+     * The records are packed off to the side by packCopy, while the tree is still searched and merged into.
+     */
+    fun collectForRepack(): Pair<ArrayList<MergeRecord>, Long> = searchLock.read {
+        val records = ArrayList<MergeRecord>(this.recordCount)
+        collectLeafRecords(root, records)
+        Pair(records, modificationCount)
+    }
+
+    /**
+     * Packs the records by bulkLoad into a new tree with the settings of this one.
+     */
+    fun packCopy(records: ArrayList<MergeRecord>): MergeTreeStructure {
+        val packed = clone()
+        packed.bulkLoad(records)
+        return packed
+    }
+
+    /**
+     * Swaps in the root of a tree packed by packCopy. Returns false, leaving the tree as it was, if the tree was changed
+     * since the records were collected.
+     */
+    fun swapPacked(packed: MergeTreeStructure, modifications: Long): Boolean = searchLock.write {
+        if (modificationCount != modifications) {
+            false
+        } else {
+            this.root = packed.root
+            modificationCount++
+            true
+        }
+    }
+
+    private fun collectLeafRecords(node: MergeNode, records: ArrayList<MergeRecord>) {
+        if (node.height == 0) {
+            records.addAll(node.mergeRecords)
+            return
+        }
+        for (record in node.mergeRecords) {
+            collectLeafRecords(record.child!!, records)
+        }
+    }
+
     /**
      * Recursive method that inserts records from the insertion queue into the tree.
      * Items in the insertion queue of a leaf node are inserted directly into the node.
@@ -381,10 +641,11 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
                 }
             }
 
-            val recordsToProcess = root.records.filter { it.child is MergeNode }
-            for (record in recordsToProcess) {
-                val child = record.child as MergeNode
-                if (child.insertionQueue.isNotEmpty()) {
+            val children = root.records.mapNotNull { it.child as? MergeNode }.filter { it.insertionQueue.isNotEmpty() }
+            if (mergeInParallel && root.height > 1 && children.size > 1) {
+                ForkJoinTask.invokeAll(children.map { child -> ForkJoinTask.adapt { insertTrees(child, root) } })
+            } else {
+                for (child in children) {
                     insertTrees(child, root)
                 }
             }
@@ -408,8 +669,10 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
     private fun overlapCriterion(currentNode: MergeNode, insertionEntry: MergeRecord): Boolean {
         var wholeSubtreeEnlargement = 0.0
         var singleEntryEnlargement = 0.0
-        for (record in currentNode.mergeRecords) {
-            val overlap = record.mbr.calculateOverlap(insertionEntry.mbr)
+        val entries = currentNode.entryCoordinates
+        val overlaps = FloatArray(entries.size())
+        MBRKernels.get().overlapAreas(entries, insertionEntry.mbr, overlaps)
+        for (overlap in overlaps) {
             if (overlap > 0) {
                 wholeSubtreeEnlargement += overlap
             }
@@ -424,15 +687,9 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
      * Calculates the minimum overlap enlargement of inserting a single entry into a child of currentNode.
      */
     private fun singleEntryOverlapEnlargement(currentNode: MergeNode, insertionEntry: MergeRecord): Double {
-        var minimumAreaIncrease = Double.MAX_VALUE
-        var minimumAreaIncreaseRecord: MergeRecord? = null
-        for (record in currentNode.mergeRecords) {
-            val potentialIncrease = record.mbr.getAreaEnlargement(insertionEntry.mbr)
-            if (potentialIncrease < minimumAreaIncrease) {
-                minimumAreaIncrease = potentialIncrease
-                minimumAreaIncreaseRecord = record
-            }
-        }
+        val selected = MBRKernels.leastEnlargement(currentNode.entryCoordinates, insertionEntry.mbr)
+        var minimumAreaIncreaseRecord: MergeRecord? = if (selected == -1) null else currentNode.mergeRecords[selected]
+        val minimumAreaIncrease = minimumAreaIncreaseRecord?.mbr?.getAreaEnlargement(insertionEntry.mbr) ?: Double.MAX_VALUE
         return if (minimumAreaIncrease == 0.0) {
             0.0
         } else {
@@ -506,16 +763,18 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
         val subtreeEntries = insertionEntry.child?.mergeRecords.orEmpty()
 
         // Step 1: Find best record for inserting the whole subtree
-        val bestWholeSubtreeRecord = childRecords.minByOrNull {
-            it.mbr.getAreaEnlargement(insertionEntry.mbr)
-        }
+        val childEntries = currentNode.entryCoordinates
+        val bestWholeSubtreeRecord = MBRKernels.leastEnlargement(childEntries, insertionEntry.mbr)
+            .let { if (it == -1) null else childRecords[it] }
         val wholeSubtreeEnlargement = bestWholeSubtreeRecord?.mbr?.getAreaEnlargement(insertionEntry.mbr) ?: Double.MAX_VALUE
 
         // Step 2: Simulate inserting individual entries
         val newMBRs = mutableMapOf<MergeRecord, MBR>()
 
         for (entry in subtreeEntries) {
-            val bestRecord = childRecords.minByOrNull { it.mbr.getAreaEnlargement(entry.mbr) } ?: continue
+            val bestIndex = MBRKernels.leastEnlargement(childEntries, entry.mbr)
+            if (bestIndex == -1) continue
+            val bestRecord = childRecords[bestIndex]
             val currentMBR = newMBRs[bestRecord] ?: bestRecord.mbr
             val updatedMBR = computeMBR(listOf(currentMBR, entry.mbr))
             newMBRs[bestRecord] = updatedMBR
@@ -551,9 +810,12 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
         var minEnlargement = Double.MAX_VALUE
         var selectedNode: MergeNode? = null
 
-        for (record in currentNode.records) {
+        val entries = currentNode.entryCoordinates
+        val enlargedAreas = FloatArray(entries.size())
+        MBRKernels.get().enlargedAreas(entries, insertionEntry.mbr, enlargedAreas)
+        for ((i, record) in currentNode.records.withIndex()) {
             if (!record.isLeaf) {
-                val enlargement = record.mbr.getAreaEnlargement(insertionEntry.mbr)
+                val enlargement = enlargedAreas[i].toDouble() - entries.area(i)
                 if (enlargement <= minEnlargement) {
                     minEnlargement = enlargement
                     selectedNode = record.child as MergeNode
@@ -572,28 +834,32 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
      * nodes that match with the search MBR.
      */
     fun search(mbr: MBR): Pair<java.util.ArrayList<DataObject>, Int> {
-        nodesAccessed = 0
         val results = java.util.ArrayList<DataObject>()
-        searchRecursive(root, mbr, results, nodesAccessed)
+        val nodesAccessed = searchLock.read {
+            searchRecursive(root, mbr, results)
+        }
         return Pair(results, nodesAccessed)
     }
 
+    // returns the number of nodes accessed
     private fun searchRecursive(
         node: RTreeNode,
         mbr: MBR,
-        results: java.util.ArrayList<DataObject>,
-        nodesAccessed: Int
-    ) {
-        this.nodesAccessed += 1
-        for (record in node.records) {
-            if (record.mbr.isOverlapping(mbr)) {
+        results: java.util.ArrayList<DataObject>
+    ): Int {
+        var nodesAccessed = 1
+        val overlapping = BooleanArray(node.recordCount)
+        MBRKernels.get().intersectionMask(node.entryCoordinates, mbr, overlapping)
+        for ((i, record) in node.records.withIndex()) {
+            if (overlapping[i]) {
                 if (node.height == 0) {
                     results.add(record.data)
                 } else {
-                    searchRecursive(record.child, mbr, results, nodesAccessed)
+                    nodesAccessed += searchRecursive(record.child, mbr, results)
                 }
             }
         }
+        return nodesAccessed
     }
 
     /**
@@ -688,8 +954,22 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
     }
 
     private fun checkOverlap(node: MergeNode): ArrayList<Double> {
-        var totalOverlap = 0.0
         val overlaps = ArrayList<Double>()
+        for (record in node.records) {
+            if (!record.isLeaf) {
+                overlaps.addAll(checkOverlap(record.child as MergeNode))
+            }
+        }
+        val overlapRatio = overlapRatio(node)
+        if (!overlapRatio.isNaN()) {
+            overlaps.add(overlapRatio)
+        }
+        return overlaps
+    }
+
+    // overlap between the entries of the node over their total area, NaN if the entries have no area
+    private fun overlapRatio(node: MergeNode): Double {
+        var totalOverlap = 0.0
         val records = node.records
         for (i in records) {
             for (j in records) {
@@ -697,15 +977,9 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
                     totalOverlap += overlap(i.mbr, j.mbr)
                 }
             }
-            if (!i.isLeaf) {
-                overlaps.addAll(checkOverlap(i.child as MergeNode))
-            }
         }
         val totalArea = records.sumOf { it.mbr.area }
-        if (totalArea != 0.0 && !totalArea.isNaN()) {
-            overlaps.add(totalOverlap / totalArea)
-        }
-        return overlaps
+        return if (totalArea != 0.0 && !totalArea.isNaN()) totalOverlap / totalArea else Double.NaN
     }
 
     private fun checkCoverage(node: MergeNode): ArrayList<Double> {
@@ -731,6 +1005,38 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
         return coverages.average()
     }
 
+    /**
+     * Estimates checkOverlapRatio, checkCoverageRatio and checkFillFactor from sampleSize random descents from the
+     * root, instead of visiting every node. Each descent gives the fill factor of the leaf it ends in, and the overlap
+     * and coverage ratios of the parent of that leaf, the level holding almost all inner nodes. Ratios of nodes
+     * without area are left out, a ratio with nothing left is NaN.
+     */
+    fun sampleQuality(sampleSize: Int, random: Random = Random.Default): TreeQuality = searchLock.read {
+        val overlaps = ArrayList<Double>()
+        val coverages = ArrayList<Double>()
+        val fillFactors = ArrayList<Double>()
+        if (root.recordCount > 0) {
+            repeat(sampleSize) {
+                var parent: MergeNode? = null
+                var node = root
+                while (node.height > 0) {
+                    parent = node
+                    node = node.mergeRecords[random.nextInt(node.recordCount)].child!!
+                }
+                fillFactors.add(node.recordCount / getM().toDouble() * 100)
+                if (parent != null) {
+                    overlaps.add(overlapRatio(parent))
+                    coverages.add(parent.records.sumOf { it.mbr.area } / parent.mbr.area)
+                }
+            }
+        }
+        TreeQuality(
+            overlaps.filter { !it.isNaN() }.average(),
+            coverages.filter { !it.isNaN() }.average(),
+            fillFactors.average()
+        )
+    }
+
     fun checkFillFactor(): Double {
         val fillFactors = checkTotalFillFactor(root)
         return fillFactors.average()
@@ -748,11 +1054,19 @@ class MergeTreeStructure(dimensions: Int, m: Int, M: Int) :
         }
         return listOfFillFactors
     }
+
+    companion object {
+        private const val PARALLEL_MERGE_THRESHOLD = 10000
+    }
 }
 
 fun MergeTreeStructure.clone(): MergeTreeStructure {
     val newTree = MergeTreeStructure(this.dimensions, this.getm(), this.getM())
     newTree.root = this.root
     newTree.recordCount = this.recordCount
+    newTree.forcedReinsertion = this.forcedReinsertion
+    newTree.reinsertFraction = this.reinsertFraction
+    newTree.splitPolicy = this.splitPolicy
+    newTree.parallelMerge = this.parallelMerge
     return newTree
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package rtree.merging
+
+/**
+ * Quality of an R-tree as measured by checkOverlapRatio, checkCoverageRatio and checkFillFactor, or estimated from a
+ * sample of its nodes by MergeTreeStructure.sampleQuality. The fill factor is in percent of M.
+ */
+class TreeQuality(val overlapRatio: Double, val coverageRatio: Double, val fillFactor: Double)
+
+/**
+ * Limits on the quality of the runs of the merging LSM-tree, beyond which a run is repacked in the background. Runs
+ * built by mergeTrees typically have overlap ratios of 0.1 to 0.3 and fill factors of 55 to 70 percent, packed runs
+ * below 0.05 and above 95 percent. A ratio that could not be measured, on nodes without area, never crosses a limit.
+ */
+data class RepackThresholds(
+    val maxOverlapRatio: Double = 0.1,
+    val maxCoverageRatio: Double = Double.MAX_VALUE,
+    val minFillFactor: Double = 60.0
+) {
+    init {
+        if (maxOverlapRatio < 0 || maxCoverageRatio < 0 || minFillFactor < 0 || minFillFactor > 100) {
+            throw IllegalArgumentException("Ratios must be positive and the fill factor a percentage")
+        }
+    }
+
+    fun isDegraded(quality: TreeQuality): Boolean {
+        return quality.overlapRatio > maxOverlapRatio || quality.coverageRatio > maxCoverageRatio ||
+            quality.fillFactor < minFillFactor
+    }
+}
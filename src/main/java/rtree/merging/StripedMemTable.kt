@@ -0,0 +1,124 @@
+package rtree.merging
+
+import rtree.base.DataObject
+import rtree.base.MBR
+import rtree.base.QuadraticSplit
+import rtree.base.SplitPolicy
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * MemTable of the merging LSM-tree that is safe to use from many writers at once.
+ *
+ * The records are spread over a number of stripes, each stripe being its own R-tree guarded by its own lock. A writer
+ * starts at the stripe given by its thread and moves on to the next free stripe if that one is taken, so writers only
+ * wait for each other when every stripe is busy. When the MemTable is flushed the stripes are sealed into one R-tree,
+ * after which the MemTable is immutable and only answers searches until it has been merged into the first level.
+ */
+class StripedMemTable(
+    private val stripeCount: Int,
+    minRecords: Int,
+    maxRecords: Int,
+    forcedReinsertion: Boolean = false,
+    splitPolicy: SplitPolicy = QuadraticSplit()
+) : MemTable {
+    private val stripes = Array(stripeCount) {
+        val stripe = MergeTreeStructure(2, minRecords, maxRecords)
+        stripe.forcedReinsertion = forcedReinsertion
+        stripe.splitPolicy = splitPolicy
+        stripe.createEmptyRoot()
+        stripe
+    }
+    private val stripeLocks = Array(stripeCount) { ReentrantLock() }
+    private val insertedRecords = AtomicInteger(0)
+
+    @Volatile
+    private var sealedTree: MergeTreeStructure? = null
+
+    override val recordCount: Int
+        get() = insertedRecords.get()
+
+    override val splitCount: Int
+        get() = stripes.sumOf { it.splitCount }
+
+    override val flushed: Boolean
+        get() = sealedTree?.mergedAway == true
+
+    /**
+     * Inserts the record into the first free stripe, and returns the record count of the MemTable after the insert.
+     */
+    override fun insert(record: MergeRecord): Int {
+        val firstStripe = (Thread.currentThread().id % stripeCount).toInt()
+        for (i in 0 until stripeCount) {
+            val stripe = (firstStripe + i) % stripeCount
+            if (stripeLocks[stripe].tryLock()) {
+                try {
+                    insertIntoStripe(stripe, record)
+                } finally {
+                    stripeLocks[stripe].unlock()
+                }
+                return insertedRecords.incrementAndGet()
+            }
+        }
+
+        stripeLocks[firstStripe].withLock {
+            insertIntoStripe(firstStripe, record)
+        }
+        return insertedRecords.incrementAndGet()
+    }
+
+    private fun insertIntoStripe(stripe: Int, record: MergeRecord) {
+        stripes[stripe].insert(record)
+        stripes[stripe].recordCount += 1
+    }
+
+    /**
+     * Searches every stripe, or the sealed tree once sealed. Returns the matching data objects and the number of nodes
+     * accessed.
+     *
+     * The MemTable may be sealed while its stripes are searched, merging the stripes already searched into another one.
+     * seal() holds every stripe lock until the sealed tree is set, so the search checks for it under each stripe lock,
+     * and drops what it found in the stripes to search the sealed tree instead.
+     */
+    override fun search(mbr: MBR): Pair<List<DataObject>, Int> {
+        sealedTree?.let { tree ->
+            return tree.search(mbr)  // The tree locks itself against the merge it may be the target of
+        }
+
+        val searchResults = mutableListOf<DataObject>()
+        var nodesSearched = 0
+
+        for (i in 0 until stripeCount) {
+            val stripeRes = stripeLocks[i].withLock {
+                if (sealedTree == null) stripes[i].search(mbr) else null
+            } ?: return sealedTree!!.search(mbr)
+            nodesSearched += stripeRes.second
+            searchResults.addAll(stripeRes.first)
+        }
+        return Pair(searchResults, nodesSearched)
+    }
+
+    /**
+     * Seals the stripes into a single R-tree. The tallest stripe is used as target and the others are merged into it
+     * with mergeTrees, as mergeTrees expects the target tree to be at least as high as the inserted tree.
+     *
+     * Must only be called when no writer is using this MemTable anymore. Searches wait while the stripes are sealed.
+     */
+    override fun seal(): MergeTreeStructure {
+        sealedTree?.let { return it }
+
+        stripeLocks.forEach { it.lock() }
+        try {
+            val nonEmptyStripes = stripes.filter { it.recordCount > 0 }.sortedByDescending { it.height }
+            val tree = if (nonEmptyStripes.isEmpty()) stripes[0] else nonEmptyStripes[0]
+            for (stripe in nonEmptyStripes.drop(1)) {
+                tree.mergeTrees(stripe)
+            }
+            sealedTree = tree
+            return tree
+        } finally {
+            stripeLocks.forEach { it.unlock() }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package rtree.merging
+
+import kotlinx.coroutines.delay
+
+/**
+ * Token bucket limiting the rate of records written by the merging LSM-tree, refilled with ratePerSecond tokens every
+ * second up to capacity tokens.
+ *
+ * Taking more tokens than there are puts the bucket in debt, and the caller suspends until the debt is paid back. A
+ * large merge can therefore take all its tokens at once, and the average rate stays at ratePerSecond. Waits shorter
+ * than a millisecond are not slept, the debt is left for the next caller to pay, so single records can be taken at
+ * high rates.
+ */
+class TokenBucket(ratePerSecond: Double, private val capacity: Double) {
+    @Volatile
+    var ratePerSecond: Double = ratePerSecond
+        set(value) {
+            synchronized(this) {
+                refill()
+                field = value
+            }
+        }
+
+    private var tokens = capacity
+    private var lastRefill = System.nanoTime()
+
+    suspend fun acquire(count: Long) {
+        val waitNanos = take(count.toDouble())
+        if (waitNanos >= 1_000_000) {
+            delay(waitNanos / 1_000_000)
+        }
+    }
+
+    // takes the tokens and returns the nanoseconds until the bucket is out of debt
+    private fun take(count: Double): Long = synchronized(this) {
+        refill()
+        tokens -= count
+        if (tokens >= 0) 0 else (-tokens / ratePerSecond * 1e9).toLong()
+    }
+
+    private fun refill() {
+        val now = System.nanoTime()
+        tokens = minOf(capacity, tokens + (now - lastRefill) / 1e9 * ratePerSecond)
+        lastRefill = now
+    }
+}
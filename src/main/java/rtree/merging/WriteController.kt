@@ -0,0 +1,89 @@
+package rtree.merging
+
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Slows down and stops the writers of the merging LSM-tree when the merges fall behind. The merge debt is the number of
+ * records on full levels beyond what filling them takes, and grows when the merges of full levels wait while flushes
+ * and merges from above keep adding to them.
+ *
+ * Below slowdownDebt writers are not held back. From slowdownDebt writes are limited to a rate starting at
+ * delayedWriteRate records per second. The rate is lowered by a fifth every time the debt has grown since the last
+ * update and raised back by as much every time it has shrunk, so it settles at what the merges keep up with, as the
+ * delayed write rate of RocksDB. From stopDebt writers wait until the debt is below stopDebt again. The debt only
+ * counts full levels, which all have a merge waiting or running, so a stop always ends.
+ */
+class WriteController(
+    private val slowdownDebt: Long,
+    private val stopDebt: Long,
+    private val delayedWriteRate: Double
+) {
+    enum class State { NORMAL, DELAYED, STOPPED }
+
+    private val state = MutableStateFlow(State.NORMAL)
+    private val writeLimiter = TokenBucket(delayedWriteRate, delayedWriteRate / 100)
+    private val stalledNanos = AtomicLong()
+    private val delayedWrites = AtomicLong()
+    private var lastDebt = 0L
+
+    /**
+     * Sets the state of the writers from the current merge debt
+     */
+    @Synchronized
+    fun update(debt: Long) {
+        if (debt >= stopDebt) {
+            state.value = State.STOPPED
+        } else if (debt >= slowdownDebt) {
+            if (state.value == State.NORMAL) {
+                writeLimiter.ratePerSecond = delayedWriteRate
+            } else if (debt > lastDebt) {
+                writeLimiter.ratePerSecond = maxOf(writeLimiter.ratePerSecond * SLOWDOWN_RATIO, MIN_WRITE_RATE)
+            } else if (debt < lastDebt) {
+                writeLimiter.ratePerSecond = minOf(writeLimiter.ratePerSecond / SLOWDOWN_RATIO, delayedWriteRate)
+            }
+            state.value = State.DELAYED
+        } else {
+            state.value = State.NORMAL
+        }
+        lastDebt = debt
+    }
+
+    /**
+     * Called by a writer before every insert, suspends the writer as long as the state says.
+     */
+    suspend fun beforeWrite() {
+        if (state.value == State.NORMAL) {
+            return
+        }
+        val start = System.nanoTime()
+        if (state.value == State.STOPPED) {
+            state.first { it != State.STOPPED }
+        }
+        if (state.value == State.DELAYED) {
+            delayedWrites.incrementAndGet()
+            writeLimiter.acquire(1)
+        }
+        stalledNanos.addAndGet(System.nanoTime() - start)
+    }
+
+    val stalledMillis: Long
+        get() = stalledNanos.get() / 1_000_000
+
+    val delayedWriteCount: Long
+        get() = delayedWrites.get()
+
+    @Synchronized
+    fun reset() {
+        state.value = State.NORMAL
+        stalledNanos.set(0)
+        delayedWrites.set(0)
+        lastDebt = 0L
+    }
+
+    companion object {
+        private const val SLOWDOWN_RATIO = 0.8
+        private const val MIN_WRITE_RATE = 100.0  // Records per second
+    }
+}
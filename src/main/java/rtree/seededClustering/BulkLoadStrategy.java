@@ -0,0 +1,11 @@
+package rtree.seededClustering;
+
+/**
+ * How records are packed into nodes when bulk-loading in the seeded clustering method.
+ * SFC packs M consecutive records in the order of the tree's space-filling curve.
+ * STR packs with Sort-Tile-Recursive, slices along x and then tiles along y within each slice.
+ */
+public enum BulkLoadStrategy {
+    SFC,
+    STR
+}
@@ -1,8 +1,12 @@
 package rtree.seededClustering;
 
+import rtree.base.MBR;
+import rtree.base.MBRKernels;
 import rtree.base.RTreeNode;
 import rtree.base.RTreeRecord;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RTree implemented with options to bulk-insert smaller trees into larger tree,
@@ -12,11 +16,13 @@ import java.util.*;
  */
 
 public class LargeRTree extends SFCRTreeStructure {
-    private int repackCount;
+    private final AtomicInteger repackCount = new AtomicInteger(); // counted by groups of small trees inserted concurrently
+    private final AtomicLong repackNanos = new AtomicLong();
+    private final AtomicLong repackedRecordCount = new AtomicLong(); // leaf records packed into new leaves by repacking
+    private boolean incrementalRepack = true;
 
     public LargeRTree(int dimensions, int m, int M) {
         super(dimensions, m, M, 0);
-        this.repackCount = 0;
 
         RTreeNode root = new SFCRTreeNode(createNodeId(), 0, new ArrayList<>());
         setRoot(root);
@@ -24,52 +30,266 @@ public class LargeRTree extends SFCRTreeStructure {
 
     public LargeRTree(SFCRTreeStructure tree) {
         super(tree.getDimensions(), tree.getm(), tree.getM(), tree.getRecordCount());
+        setSpaceFillingCurve(tree.getSpaceFillingCurve());
+        setBulkLoadStrategy(tree.getBulkLoadStrategy());
+        setSplitPolicy(tree.getSplitPolicy());
         setRoot(tree.getRoot());
     }
 
+    /**
+     * creates the starting tree by bulk-loading the records, the strategy is also used when repacking later
+     */
+    public LargeRTree(int dimensions, int m, int M, ArrayList<SFCRTreeRecord> records, BulkLoadStrategy bulkLoadStrategy) {
+        super(dimensions, m, M, records.size());
+        setBulkLoadStrategy(bulkLoadStrategy);
+        bulkLoad(records);
+    }
+
     /**
      * method for inserting input (small) trees into the main RTree
      * if main RTree is empty (just root) or only have few records, height = 0, will simply insert main tree into root
      *
      * NB! notice only take too high trees or trees that fit, too small trees are handled by adjusting the seeded tree before clustering is performed
+     *
+     * The small trees are grouped by the node they are inserted into, so the path to a seed node is searched once per seed.
+     * Groups whose insertion nodes are neither above nor below each other change disjoint subtrees, and are inserted
+     * concurrently, each splitting its own insertion node if it overflows. Linking the split nodes into the shared
+     * ancestors, and splitting those, is done afterwards one group at a time. Groups nested in other groups are inserted
+     * tree by tree at the end
      */
     public void bulkInsert(Queue<SmallRTree> inputTrees) {
-        int treesToInsert = inputTrees.size();
-        for (int i = 0; i < treesToInsert; i++) {
-            SmallRTree tree = inputTrees.remove();
-            RTreeNode insertionNode;
-            ArrayDeque<RTreeNode> path = new ArrayDeque<>();
-
-            if (this.getHeight() == 0) {
-                insertionNode = this.getRoot();
-            } else {
-                path = findInsertionPathForSubtree(tree, this.getRoot(), path);
-                insertionNode = path.pop();
+        while (!inputTrees.isEmpty() && this.getHeight() == 0) {
+            insertSmallTree(inputTrees.remove());
+        }
+        if (inputTrees.isEmpty()) {
+            return;
+        }
+
+        ArrayList<SubtreeInsertion> groups = groupByInsertionNode(inputTrees);
+        inputTrees.clear();
+        insertGroups(groups);
+    }
+
+    /**
+     * inserts outliers from C1. The outliers are sorted along the Hilbert curve and cut into runs of M, and a run covering
+     * no more than the average leaf of the tree is packed into a leaf and inserted into the node on height 1 needing
+     * least area enlargement, concurrently with the other leaves like the small trees from C1. Outliers in wider runs are
+     * too far apart to share a leaf, and are inserted one by one. The Hilbert curve is used whatever the curve of the
+     * tree, as ordering on lowX would cut the outliers into strips
+     */
+    public void bulkInsertOutliers(ArrayList<SFCRTreeRecord> outliers) {
+        ArrayList<SFCRTreeRecord> scatteredOutliers = new ArrayList<>();
+        if (this.getHeight() == 0 || outliers.size() < this.getM()) {
+            scatteredOutliers = outliers;
+        }
+        else {
+            double averageLeafArea = this.getRoot().getMbr().getArea() * this.getM() / Math.max(1, this.getRecordCount());
+            sortBySfc(outliers, SpaceFillingCurve.HILBERT);
+
+            LinkedHashMap<RTreeNode, SubtreeInsertion> groups = new LinkedHashMap<>();
+            for (int i = 0; i < outliers.size(); i += this.getM()) {
+                ArrayList<SFCRTreeRecord> run = new ArrayList<>(outliers.subList(i, Math.min(i + this.getM(), outliers.size())));
+                MBR runMbr = findExtent(run);
+                if (run.size() < this.getm() || runMbr.getArea() > averageLeafArea) {
+                    scatteredOutliers.addAll(run);
+                    continue;
+                }
+                ArrayDeque<RTreeNode> path = findInsertionPathAtHeight(runMbr, 1);
+                groups.computeIfAbsent(path.peek(), node -> new SubtreeInsertion(path)).trees.add(new SmallRTree(
+                        this.getDimensions(), this.getm(), this.getM(), run, path.peek().getId(), 1, this.getSpaceFillingCurve(), this.getBulkLoadStrategy()));
+            }
+            insertGroups(new ArrayList<>(groups.values()));
+        }
+
+        for (SFCRTreeRecord outlier : scatteredOutliers) {
+            insert(outlier);
+            incrementRecordCount();
+        }
+    }
+
+    /**
+     * inserts groups found for the current tree, the disjoint ones concurrently
+     */
+    private void insertGroups(ArrayList<SubtreeInsertion> groups) {
+        HashSet<RTreeNode> insertionNodes = new HashSet<>();
+        HashSet<RTreeNode> ancestors = new HashSet<>();
+        for (SubtreeInsertion group : groups) {
+            insertionNodes.add(group.insertionNode);
+            ancestors.addAll(group.path);
+        }
+        ArrayList<SubtreeInsertion> disjointGroups = new ArrayList<>();
+        ArrayList<SubtreeInsertion> nestedGroups = new ArrayList<>();
+        for (SubtreeInsertion group : groups) {
+            if (ancestors.contains(group.insertionNode) || group.path.stream().anyMatch(insertionNodes::contains)) {
+                nestedGroups.add(group);
             }
+            else {
+                disjointGroups.add(group);
+            }
+        }
 
-            RTreeNode insertionNodeBefore = this.createNodeFromExistingNode(insertionNode);
+        if (disjointGroups.size() > 1) {
+            disjointGroups.parallelStream().forEach(this::insertGroup);
+        }
+        else {
+            disjointGroups.forEach(this::insertGroup);
+        }
 
-            if (tree.getHeight() == insertionNode.getHeight() - 1) {
-                if (tree.getRoot().getRecordCount() < this.getm()) {
-                    insertionNode = insertSubtreesWhenRootUnderflow(tree.getRoot(), insertionNode);
+        for (SubtreeInsertion group : disjointGroups) {
+            ArrayDeque<RTreeNode> path = group.path;
+            if (!isPathToNode(group.insertionNode, path)) {
+                path = findPathToNode(group.insertionNode, group.mbrBeforeInsert);
+                path.pop();
+            }
+            if (group.nodesAfterSplit != null) {
+                readjustPathAfterSplit(group.insertionNode, group.nodesAfterSplit, path);
+            }
+            else {
+                adjustMBRsOnPath(group.insertionNode, path);
+            }
+            for (SmallRTree tree : group.trees) {
+                addToRecordCount(tree.getRecordCount());
+            }
+        }
+
+        for (SubtreeInsertion group : nestedGroups) {
+            for (SmallRTree tree : group.trees) {
+                insertSmallTree(tree);
+            }
+        }
+    }
+
+    /**
+     * small trees inserted into the same node, with the path from the parent of the node up to the root
+     */
+    private static class SubtreeInsertion {
+        private final RTreeNode insertionNode;
+        private final ArrayDeque<RTreeNode> path;
+        private final MBR mbrBeforeInsert;
+        private final ArrayList<SmallRTree> trees = new ArrayList<>();
+        private ArrayList<RTreeNode> nodesAfterSplit; // set if the insertion node overflowed
+
+        private SubtreeInsertion(ArrayDeque<RTreeNode> pathToInsertionNode) {
+            this.path = new ArrayDeque<>(pathToInsertionNode);
+            this.insertionNode = this.path.pop();
+            this.mbrBeforeInsert = this.insertionNode.getMbr();
+        }
+    }
+
+    private ArrayList<SubtreeInsertion> groupByInsertionNode(Queue<SmallRTree> inputTrees) {
+        HashMap<Integer, ArrayDeque<RTreeNode>> pathsToSeeds = new HashMap<>();
+        LinkedHashMap<RTreeNode, SubtreeInsertion> groups = new LinkedHashMap<>();
+        for (SmallRTree tree : inputTrees) {
+            ArrayDeque<RTreeNode> path = pathsToSeeds.get(tree.getNodeIdOfSeed());
+            if (path == null) {
+                path = findInsertionPathForSubtree(tree, this.getRoot(), new ArrayDeque<>());
+                if (path.isEmpty()) {
+                    path = findInsertionPathAtHeight(tree.getRoot().getMbr(), tree.getHeightOfSeedNode());
                 }
                 else {
-                    insertionNode = insertSmallTreeAsWhole(tree.getRoot(), insertionNode);
+                    pathsToSeeds.put(tree.getNodeIdOfSeed(), path);
                 }
             }
-            else if (tree.getHeight() >= insertionNode.getHeight()) {
-                insertionNode = insertSubtreesOfSmallTree(tree, insertionNode);
+            ArrayDeque<RTreeNode> pathToInsertionNode = path;
+            groups.computeIfAbsent(path.peek(), node -> new SubtreeInsertion(pathToInsertionNode)).trees.add(tree);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * inserts the small trees of the group into its insertion node, and splits the node without changing its ancestors
+     * if it overflows. Only changes the subtree below the insertion node
+     */
+    private void insertGroup(SubtreeInsertion group) {
+        for (SmallRTree tree : group.trees) {
+            insertIntoNode(tree, group.insertionNode);
+        }
+        if (group.insertionNode.getRecordCount() > this.getM()) {
+            group.nodesAfterSplit = splitUntilFits(group.insertionNode);
+        }
+    }
+
+    private void insertSmallTree(SmallRTree tree) {
+        RTreeNode insertionNode;
+        ArrayDeque<RTreeNode> path = new ArrayDeque<>();
+
+        if (this.getHeight() == 0) {
+            insertionNode = this.getRoot();
+        } else {
+            path = findInsertionPathForSubtree(tree, this.getRoot(), path);
+            if (path.isEmpty()) {
+                path = findInsertionPathAtHeight(tree.getRoot().getMbr(), tree.getHeightOfSeedNode());
             }
+            insertionNode = path.pop();
+        }
+
+        insertionNode = insertIntoNode(tree, insertionNode);
 
-            if (insertionNode.getRecordCount() > this.getM()) {
-                performQuadraticSplitAndReadjustPath(insertionNode, path);
+        if (insertionNode.getRecordCount() > this.getM()) {
+            performSplitAndReadjustPath(insertionNode, path);
+        }
+        else {
+            adjustMBRsOnPath(insertionNode, path);
+        }
+
+        addToRecordCount(tree.getRecordCount());
+    }
+
+    private RTreeNode insertIntoNode(SmallRTree tree, RTreeNode insertionNode) {
+        if (tree.getHeight() == insertionNode.getHeight() - 1) {
+            if (tree.getRoot().getRecordCount() < this.getm()) {
+                return insertSubtreesWhenRootUnderflow(tree.getRoot(), insertionNode);
             }
-            else {
-                adjustMBRsOnPath(insertionNode, insertionNodeBefore, path);
+            return insertSmallTreeAsWhole(tree.getRoot(), insertionNode);
+        }
+        else if (tree.getHeight() >= insertionNode.getHeight()) {
+            return insertSubtreesOfSmallTree(tree, insertionNode);
+        }
+        return insertionNode;
+    }
+
+    /**
+     * whether path still leads from the root to node. Splits of ancestors while linking other groups leave the split
+     * nodes without records, and a new root replaces the old one
+     */
+    private boolean isPathToNode(RTreeNode node, ArrayDeque<RTreeNode> path) {
+        RTreeNode child = node;
+        for (RTreeNode parent : path) {
+            if (parent.getChildIndex(child) == -1) {
+                return false;
             }
+            child = parent;
+        }
+        return child == this.getRoot();
+    }
 
-            addToRecordCount(tree.getRecordCount());
+    /**
+     * path to node, found by descending through the entries covering mbr, the MBR of node when the record pointing to it
+     * was last updated. Used when splits of ancestors have changed the path. Head of the path is the node
+     */
+    private ArrayDeque<RTreeNode> findPathToNode(RTreeNode node, MBR mbr) {
+        ArrayDeque<RTreeNode> path = new ArrayDeque<>();
+        if (!findPathToNode(this.getRoot(), node, mbr, path)) {
+            throw new IllegalStateException("Node " + node.getId() + " is not in the tree");
         }
+        return path;
+    }
+
+    private boolean findPathToNode(RTreeNode currentNode, RTreeNode node, MBR mbr, ArrayDeque<RTreeNode> path) {
+        if (currentNode == node) {
+            path.add(currentNode);
+            return true;
+        }
+        if (currentNode.getHeight() <= node.getHeight()) {
+            return false;
+        }
+        for (RTreeRecord record : currentNode.getRecords()) {
+            if (record.getMBR().getAreaEnlargement(mbr) == 0 && findPathToNode(record.getChild(), node, mbr, path)) {
+                path.add(currentNode);
+                return true;
+            }
+        }
+        return false;
     }
 
     private ArrayDeque<RTreeNode> findInsertionPathForSubtree(SmallRTree tree, RTreeNode root, ArrayDeque<RTreeNode> path) {
@@ -84,6 +304,23 @@ public class LargeRTree extends SFCRTreeStructure {
         return path;
     }
 
+    /**
+     * path to the node on the given height needing least area enlargement to cover mbr. Used for outliers, and for small
+     * trees when the seed node is gone: in the pipelined LSM-tree the seed node can have been split by earlier
+     * insertions after the small tree was clustered. Head of the path is the insertion node
+     */
+    private ArrayDeque<RTreeNode> findInsertionPathAtHeight(MBR mbr, int height) {
+        ArrayDeque<RTreeNode> path = new ArrayDeque<>();
+        RTreeNode currentNode = this.getRoot();
+        path.push(currentNode);
+        while (currentNode.getHeight() > height) {
+            int selected = MBRKernels.leastEnlargement(currentNode.getEntryCoordinates(), mbr);
+            currentNode = currentNode.getRecords().get(selected).getChild();
+            path.push(currentNode);
+        }
+        return path;
+    }
+
     private void checkSubPath(RTreeNode currentNode, SmallRTree tree, ArrayDeque<RTreeNode> path) {
         for (int i = 0; i < currentNode.getRecordCount(); i++) {
             RTreeNode child = currentNode.getRecords().get(i).getChild();
@@ -104,8 +341,7 @@ public class LargeRTree extends SFCRTreeStructure {
     }
 
     private RTreeNode insertSmallTreeAsWhole(RTreeNode root, RTreeNode insertionNode) {
-        SFCRTreeNode castedNode = (SFCRTreeNode) root;
-        SFCRTreeRecord record = new SFCRTreeRecord(castedNode.getMbr(), castedNode, castedNode.getLowX());
+        SFCRTreeRecord record = (SFCRTreeRecord) createRecord(root);
 
         insertionNode = addSubtreeRepackEntriesIfNeeded(insertionNode, record);
         return insertionNode;
@@ -127,7 +363,7 @@ public class LargeRTree extends SFCRTreeStructure {
             selectedInsertionNode.addRecordAndReadjustMBR(record);
             if (selectedInsertionNode.getRecordCount() > this.getM()) {
                 ArrayList<SFCRTreeRecord> records = selectedInsertionNode.getRecordsAsSFC();
-                Collections.sort(records);
+                sortBySfc(records);
                 ArrayList<RTreeRecord> records1 = new ArrayList<>();
                 ArrayList<RTreeRecord> records2 = new ArrayList<>();
 
@@ -147,14 +383,7 @@ public class LargeRTree extends SFCRTreeStructure {
                 recordsToUpdate.add(updatedRecord);
             }
 
-            int indexOfRecordToBeUpdated = 0;
-            for (RTreeRecord insertionRecord : insertionNode.getRecords()) {
-                if (insertionRecord.getChild().getId() == selectedInsertionNode.getId()) {
-                    indexOfRecordToBeUpdated = insertionNode.getRecordIndex(insertionRecord);
-                }
-            }
-
-            insertionNode.removeRecord(indexOfRecordToBeUpdated);
+            insertionNode.removeRecord(findChildIndex(insertionNode, selectedInsertionNode));
 
             for (RTreeRecord updatedRecord : recordsToUpdate) {
                 insertionNode.addRecordAndReadjustMBR(updatedRecord);
@@ -188,8 +417,9 @@ public class LargeRTree extends SFCRTreeStructure {
     /**
      * inserts subtree in insertionNode, repacks if necessary: repacking described below
      *  Check if root node of tree overlaps with any of the other mbrs in the insertionNode's children
-     *  for the overlapping entries, repack the entries by bulk-loading (lowX-value etc)
+     *  for the overlapping entries, repack the entries by bulk-loading (ordered by the tree's space-filling curve)
      *  insert the resulting nodes back into the LargeTree
+     * With incremental repacking only the leaves where the subtree overlaps the existing ones are rebuilt, see repackIncrementally
      *
      * @param insertionNode - node to insert the subtrees into
      * @param record - record of the subtree's root, which is to be inserted into insertionNode
@@ -210,51 +440,167 @@ public class LargeRTree extends SFCRTreeStructure {
 
         if (newRecords.size() == 1) {
             insertionNode.addRecordAndReadjustMBR(record);
-            return new SFCRTreeNode((SFCRTreeNode) insertionNode);
+            return insertionNode;
         }
 
+        long start = System.nanoTime();
+        int height = insertionNode.getHeight() - 1;
+        ArrayList<SFCRTreeRecord> leafRecordsToRepack;
+        if (this.incrementalRepack && insertionNode.getHeight() > 1) {
+            leafRecordsToRepack = repackIncrementally(newRecords, insertionNode.getHeight());
+        }
+        else {
+            leafRecordsToRepack = repackFromScratch(newRecords, insertionNode.getHeight());
+        }
+
+        if (leafRecordsToRepack.size() + noRepackRecords.size() < this.getm()) {
+            leafRecordsToRepack = redistributeRecords(leafRecordsToRepack, this.getm() - noRepackRecords.size(), height);
+        }
+
+        ArrayList<SFCRTreeRecord> updatedRecords = new ArrayList<>();
+        updatedRecords.addAll(leafRecordsToRepack);
+        updatedRecords.addAll(noRepackRecords);
+
+        sortBySfc(updatedRecords);
+
+        insertionNode.clearRecords();
+        insertionNode.addMultipleRecords(new ArrayList<>(updatedRecords));
+        insertionNode.calculateAndUpdateMBR();
+
+        this.repackCount.incrementAndGet();
+        this.repackNanos.addAndGet(System.nanoTime() - start);
+
+        return insertionNode;
+    }
+
+    /**
+     * collects all leaf records below the records, sorts them and packs all levels up to the insertion node again.
+     * Returns the records for the nodes below the insertion node
+     */
+    private ArrayList<SFCRTreeRecord> repackFromScratch(ArrayList<SFCRTreeRecord> records, int insertionHeight) {
         ArrayList<SFCRTreeRecord> leafRecordsToRepack = new ArrayList<>();
-        for (RTreeRecord newRecord : newRecords) {
-            if (newRecord.isLeaf()) {
-                leafRecordsToRepack.add((SFCRTreeRecord) newRecord);
+        for (RTreeRecord record : records) {
+            if (record.isLeaf()) {
+                leafRecordsToRepack.add((SFCRTreeRecord) record);
             }
             else {
-                findLeafRecords(newRecord, leafRecordsToRepack);
+                findLeafRecords(record, leafRecordsToRepack);
             }
         }
+        this.repackedRecordCount.addAndGet(leafRecordsToRepack.size());
 
         int height = 0;
         ArrayList<SFCRTreeNode> nodes;
-        Collections.sort(leafRecordsToRepack);
+        sortBySfc(leafRecordsToRepack);
         while(true) {
             nodes = createNodesInBulk(leafRecordsToRepack, height);
             leafRecordsToRepack = createRecordsForNodes(nodes);
-            Collections.sort(leafRecordsToRepack);
+            sortBySfc(leafRecordsToRepack);
 
-            if (height == insertionNode.getHeight() - 1) {
+            if (height == insertionHeight - 1) {
                 break;
             }
 
             height ++;
         }
+        return leafRecordsToRepack;
+    }
 
-        if (leafRecordsToRepack.size() + noRepackRecords.size() < this.getm()) {
-            leafRecordsToRepack = redistributeRecords(leafRecordsToRepack, this.getm() - noRepackRecords.size(), height);
+    /**
+     * repacks the subtrees below the records, the first one being the inserted subtree, rebuilding only the leaves where
+     * the inserted subtree overlaps the existing ones, found by joining the inserted subtree with each existing one.
+     * Their records are merged from the sorted leaves and packed into new leaves, the other leaves are kept as they are.
+     * The levels above the leaves are packed again, which is cheap as they hold M times fewer records. Only used above
+     * height 1, as below it every overlapping entry is a leaf overlapping the inserted one. Returns the records for the
+     * nodes below the insertion node
+     */
+    private ArrayList<SFCRTreeRecord> repackIncrementally(ArrayList<SFCRTreeRecord> records, int insertionHeight) {
+        RTreeNode insertedRoot = records.get(0).getChild();
+        HashSet<RTreeNode> overlappingLeaves = new HashSet<>();
+        for (int i = 1; i < records.size(); i++) {
+            findOverlappingLeaves(records.get(i).getChild(), insertedRoot, overlappingLeaves);
         }
 
-        ArrayList<SFCRTreeRecord> updatedRecords = new ArrayList<>();
-        updatedRecords.addAll(leafRecordsToRepack);
-        updatedRecords.addAll(noRepackRecords);
+        ArrayList<SFCRTreeNode> leaves = new ArrayList<>();
+        for (SFCRTreeRecord record : records) {
+            findLeaves(record.getChild(), leaves);
+        }
+        ArrayList<ArrayList<SFCRTreeRecord>> leafRuns = new ArrayList<>();
+        ArrayList<SFCRTreeNode> keptLeaves = new ArrayList<>();
+        for (SFCRTreeNode leaf : leaves) {
+            if (overlappingLeaves.contains(leaf)) {
+                leafRuns.add(leaf.getRecordsAsSFC());
+            }
+            else {
+                keptLeaves.add(leaf);
+            }
+        }
 
-        Collections.sort(updatedRecords);
+        if (!leafRuns.isEmpty()) {
+            ArrayList<SFCRTreeRecord> leafRecordsToRepack = mergeSortedRuns(leafRuns);
+            this.repackedRecordCount.addAndGet(leafRecordsToRepack.size());
+            keptLeaves.addAll(createNodesInBulk(leafRecordsToRepack, 0));
+        }
 
-        insertionNode.clearRecords();
-        insertionNode.addMultipleRecords(new ArrayList<>(updatedRecords));
-        insertionNode.calculateAndUpdateMBR();
+        ArrayList<SFCRTreeRecord> nodeRecords = createRecordsForNodes(keptLeaves);
+        sortBySfc(nodeRecords);
+        for (int height = 1; height < insertionHeight; height++) {
+            nodeRecords = createRecordsForNodes(createNodesInBulk(nodeRecords, height));
+            sortBySfc(nodeRecords);
+        }
+        return nodeRecords;
+    }
 
-        this.repackCount ++;
+    /**
+     * adds the leaves of both subtrees overlapping a leaf of the other to leaves, descending only into pairs of
+     * overlapping nodes, the higher node first
+     */
+    private void findOverlappingLeaves(RTreeNode node, RTreeNode otherNode, HashSet<RTreeNode> leaves) {
+        if (!node.getMbr().isOverlapping(otherNode.getMbr())) {
+            return;
+        }
+        if (node.getHeight() == 0 && otherNode.getHeight() == 0) {
+            leaves.add(node);
+            leaves.add(otherNode);
+            return;
+        }
 
-        return insertionNode;
+        RTreeNode higherNode = node.getHeight() >= otherNode.getHeight() ? node : otherNode;
+        RTreeNode lowerNode = higherNode == node ? otherNode : node;
+        boolean[] overlapping = new boolean[higherNode.getRecordCount()];
+        MBRKernels.get().intersectionMask(higherNode.getEntryCoordinates(), lowerNode.getMbr(), overlapping);
+        for (int i = 0; i < overlapping.length; i++) {
+            if (overlapping[i]) {
+                findOverlappingLeaves(higherNode.getRecords().get(i).getChild(), lowerNode, leaves);
+            }
+        }
+    }
+
+    /**
+     * merges runs of leaf records into one list ordered on the space-filling curve of the tree. Keys are computed again
+     * for the extent of all runs, as Z_ORDER and HILBERT keys are normalized to the extent of the records sorted
+     * together. The runs are joined and sorted with Collections.sort, a TimSort, which finds the runs still in order and
+     * merges them instead of sorting from scratch. STR does its own sorting, so the runs are just joined
+     */
+    private ArrayList<SFCRTreeRecord> mergeSortedRuns(ArrayList<ArrayList<SFCRTreeRecord>> runs) {
+        ArrayList<SFCRTreeRecord> records = new ArrayList<>();
+        for (ArrayList<SFCRTreeRecord> run : runs) {
+            records.addAll(run);
+        }
+        if (this.getBulkLoadStrategy() != BulkLoadStrategy.STR) {
+            sortBySfc(records);
+        }
+        return records;
+    }
+
+    private void findLeaves(RTreeNode node, ArrayList<SFCRTreeNode> leaves) {
+        if (node.getHeight() == 0) {
+            leaves.add((SFCRTreeNode) node);
+            return;
+        }
+        for (RTreeRecord record : node.getRecords()) {
+            findLeaves(record.getChild(), leaves);
+        }
     }
 
     private ArrayList<SFCRTreeRecord> redistributeRecords(ArrayList<SFCRTreeRecord> records, int requiredNumberOfNodes, int height) {
@@ -265,7 +611,7 @@ public class LargeRTree extends SFCRTreeStructure {
             recordsToPack.addAll(child.getRecordsAsSFC());
         }
 
-        Collections.sort(recordsToPack);
+        sortBySfc(recordsToPack);
 
         int recordCountPerNode = (int) Math.floor((double) recordsToPack.size() / requiredNumberOfNodes);
         int recordsLeft = recordsToPack.size() - (recordCountPerNode * requiredNumberOfNodes);
@@ -303,6 +649,24 @@ public class LargeRTree extends SFCRTreeStructure {
     }
 
     public int getRepackCount() {
-        return this.repackCount;
+        return this.repackCount.get();
+    }
+
+    /**
+     * total time spent repacking, summed over the threads inserting groups of small trees concurrently
+     */
+    public long getRepackMillis() {
+        return this.repackNanos.get() / 1_000_000;
+    }
+
+    public long getRepackedRecordCount() {
+        return this.repackedRecordCount.get();
+    }
+
+    /**
+     * selects whether repacking rebuilds only the overlapping leaves, or all leaves below the overlapping entries
+     */
+    public void setIncrementalRepack(boolean incrementalRepack) {
+        this.incrementalRepack = incrementalRepack;
     }
 }
@@ -0,0 +1,149 @@
+package rtree.seededClustering;
+
+import rtree.base.MBR;
+import rtree.base.SortTileRecursive;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * Bulk-loads an SFCRTreeStructure using all cores of a ForkJoinPool.
+ * 1. keys of the leaf records are computed in parallel, and the records are sorted with a parallel sort
+ *    (on the space-filling curve for SFC, on x-center for STR so partitions become vertical slices)
+ * 2. the sorted records are cut into partitions, each partition is packed into subtrees of the same height by its own task
+ * 3. the roots of the subtrees are packed into the upper levels of the tree
+ *
+ * Nodes and records are created by the factories of the tree, so the result is the same kind of tree as by bulkLoad.
+ */
+class ParallelBulkLoader {
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private final SFCRTreeStructure tree;
+    private final ForkJoinPool pool;
+
+    ParallelBulkLoader(SFCRTreeStructure tree, ForkJoinPool pool) {
+        this.tree = tree;
+        this.pool = pool;
+    }
+
+    void bulkLoad(ArrayList<SFCRTreeRecord> records) {
+        int partitionCount = pool.getParallelism() * PARTITIONS_PER_THREAD;
+        int subtreeLevels = findSubtreeLevels(records.size() / partitionCount);
+
+        if (subtreeLevels == 0) {
+            tree.packLevels(records, 0);
+            return;
+        }
+
+        // sorted in the pool, so the parallel streams and the parallel sort run on its workers and not the common pool
+        List<SFCRTreeRecord> sortedRecords = pool.submit(() -> sortInParallel(records)).join();
+        ArrayList<SFCRTreeNode> subtrees = pool.invoke(new PackPartitions(sortedRecords, partitionCount, 0, partitionCount, subtreeLevels));
+
+        if (subtrees.size() == 1) {
+            tree.setRoot(subtrees.get(0));
+        }
+        else {
+            tree.packLevels(tree.createRecordsForNodes(subtrees), subtreeLevels);
+        }
+    }
+
+    // highest number of levels where a partition fills at least one node on the top level, so no partition underflows
+    private int findSubtreeLevels(int partitionSize) {
+        int levels = 0;
+        long capacity = tree.getM();
+        while (capacity <= partitionSize) {
+            levels ++;
+            capacity *= tree.getM();
+        }
+        return levels;
+    }
+
+    private List<SFCRTreeRecord> sortInParallel(ArrayList<SFCRTreeRecord> records) {
+        SFCRTreeRecord[] sorted = records.toArray(new SFCRTreeRecord[0]);
+
+        if (tree.getBulkLoadStrategy() == BulkLoadStrategy.STR) {
+            float[] centerX = new float[sorted.length];
+            IntStream.range(0, sorted.length).parallel().forEach(i ->
+                    centerX[i] = (sorted[i].getMBR().getLow().getX() + sorted[i].getMBR().getHigh().getX()) / 2);
+
+            int[] order = SortTileRecursive.sortIndices(centerX);
+            SFCRTreeRecord[] sortedOnX = new SFCRTreeRecord[sorted.length];
+            IntStream.range(0, sorted.length).parallel().forEach(i -> sortedOnX[i] = sorted[order[i]]);
+            return Arrays.asList(sortedOnX);
+        }
+
+        SpaceFillingCurve curve = tree.getSpaceFillingCurve();
+        MBR extent = curve == SpaceFillingCurve.LOW_X ? null : findExtentInParallel(sorted);
+        Arrays.stream(sorted).parallel().forEach(record -> record.setSfcValue(curve.key(record.getMBR(), extent)));
+        Arrays.parallelSort(sorted);
+        return Arrays.asList(sorted);
+    }
+
+    private MBR findExtentInParallel(SFCRTreeRecord[] records) {
+        float[] low = {
+                (float) Arrays.stream(records).parallel().mapToDouble(record -> record.getMBR().getLow().getX()).min().getAsDouble(),
+                (float) Arrays.stream(records).parallel().mapToDouble(record -> record.getMBR().getLow().getY()).min().getAsDouble()
+        };
+        float[] high = {
+                (float) Arrays.stream(records).parallel().mapToDouble(record -> record.getMBR().getHigh().getX()).max().getAsDouble(),
+                (float) Arrays.stream(records).parallel().mapToDouble(record -> record.getMBR().getHigh().getY()).max().getAsDouble()
+        };
+        return new MBR(low, high);
+    }
+
+    /**
+     * packs the partitions [fromPartition, toPartition) of the sorted records, splitting the range in two until one
+     * partition is left. Returns the subtree roots in the order of the sorted records.
+     */
+    private class PackPartitions extends RecursiveTask<ArrayList<SFCRTreeNode>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SFCRTreeRecord> sortedRecords;
+        private final int partitionCount;
+        private final int fromPartition;
+        private final int toPartition;
+        private final int subtreeLevels;
+
+        PackPartitions(List<SFCRTreeRecord> sortedRecords, int partitionCount, int fromPartition, int toPartition, int subtreeLevels) {
+            this.sortedRecords = sortedRecords;
+            this.partitionCount = partitionCount;
+            this.fromPartition = fromPartition;
+            this.toPartition = toPartition;
+            this.subtreeLevels = subtreeLevels;
+        }
+
+        @Override
+        protected ArrayList<SFCRTreeNode> compute() {
+            if (toPartition - fromPartition == 1) {
+                return packPartition(fromPartition);
+            }
+
+            int middle = (fromPartition + toPartition) / 2;
+            PackPartitions left = new PackPartitions(sortedRecords, partitionCount, fromPartition, middle, subtreeLevels);
+            PackPartitions right = new PackPartitions(sortedRecords, partitionCount, middle, toPartition, subtreeLevels);
+            left.fork();
+            ArrayList<SFCRTreeNode> subtrees = right.compute();
+            subtrees.addAll(0, left.join());
+            return subtrees;
+        }
+
+        private ArrayList<SFCRTreeNode> packPartition(int partition) {
+            int start = (int) ((long) sortedRecords.size() * partition / partitionCount);
+            int end = (int) ((long) sortedRecords.size() * (partition + 1) / partitionCount);
+
+            ArrayList<SFCRTreeRecord> records = new ArrayList<>(sortedRecords.subList(start, end));
+            ArrayList<SFCRTreeNode> nodes = new ArrayList<>();
+            for (int height = 0; height < subtreeLevels; height++) {
+                if (height > 0 && tree.getBulkLoadStrategy() == BulkLoadStrategy.SFC) {
+                    tree.sortBySfc(records);
+                }
+                nodes = tree.createNodesInBulk(records, height);
+                records = tree.createRecordsForNodes(nodes);
+            }
+            return nodes;
+        }
+    }
+}
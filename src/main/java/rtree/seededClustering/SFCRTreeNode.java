@@ -11,13 +11,13 @@ import java.util.ArrayList;
  */
 
 public class SFCRTreeNode extends RTreeNode implements Comparable<SFCRTreeNode> {
-    private int lowX = -1;
+    private float lowX = -1;
 
     public SFCRTreeNode(int id, int height, ArrayList<RTreeRecord> records) {
         super(id, height, records);
 
         if (!records.isEmpty()) {
-            this.lowX = this.getMbr().getLowX();
+            this.lowX = this.getMbr().getLow().getX();
         }
     }
 
@@ -26,8 +26,8 @@ public class SFCRTreeNode extends RTreeNode implements Comparable<SFCRTreeNode>
         this.lowX = node.getLowX();
     }
 
-    public int getLowX() {
-        this.lowX = this.getMbr().getLowX();
+    public float getLowX() {
+        this.lowX = this.getMbr().getLow().getX();
         return this.lowX;
     }
 
@@ -41,6 +41,6 @@ public class SFCRTreeNode extends RTreeNode implements Comparable<SFCRTreeNode>
 
     @Override
     public int compareTo(SFCRTreeNode node) {
-        return this.getLowX() - node.getLowX();
+        return Float.compare(this.getLowX(), node.getLowX());
     }
 }
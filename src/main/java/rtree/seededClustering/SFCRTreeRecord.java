@@ -12,24 +12,28 @@ import rtree.base.RTreeRecord;
  */
 public class SFCRTreeRecord extends RTreeRecord implements Comparable<SFCRTreeRecord> {
 
-    private int lowX; 
+    private long sfcValue;
 
     public SFCRTreeRecord(MBR mbr, DataObject data) {
         super(mbr, data);
-        this.lowX = mbr.getLowX();
+        this.sfcValue = SpaceFillingCurve.LOW_X.key(mbr, null);
     }
 
-    public SFCRTreeRecord(MBR mbr, RTreeNode child, int lowX) {
+    public SFCRTreeRecord(MBR mbr, RTreeNode child, long sfcValue) {
         super(mbr, child);
-        this.lowX = lowX;
+        this.sfcValue = sfcValue;
     }
 
-    public int getlowX() {
-        return this.lowX;
+    public long getSfcValue() {
+        return this.sfcValue;
+    }
+
+    public void setSfcValue(long sfcValue) {
+        this.sfcValue = sfcValue;
     }
 
     @Override
     public int compareTo(SFCRTreeRecord record) {
-        return this.getlowX() - record.getlowX();
+        return Long.compare(this.getSfcValue(), record.getSfcValue());
     }
 }
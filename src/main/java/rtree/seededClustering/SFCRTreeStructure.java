@@ -1,10 +1,14 @@
 package rtree.seededClustering;
 
+import rtree.base.MBR;
 import rtree.base.RTreeNode;
 import rtree.base.RTreeRecord;
 import rtree.base.RTreeStructure;
+import rtree.base.SortTileRecursive;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * RTree structure also containing space-filling curve value. Used for R-tree components in LSM-tree levels
@@ -13,7 +17,11 @@ import java.util.List;
  */
 
 public abstract class SFCRTreeStructure extends RTreeStructure {
+    private static final int PARALLEL_BULK_LOAD_THRESHOLD = 100000;
+
     private int recordCount;
+    private SpaceFillingCurve spaceFillingCurve = SpaceFillingCurve.LOW_X;
+    private BulkLoadStrategy bulkLoadStrategy = BulkLoadStrategy.SFC;
 
     public SFCRTreeStructure(int dimensions, int m, int M, int recordCount) {
         super(dimensions, m, M);
@@ -33,7 +41,118 @@ public abstract class SFCRTreeStructure extends RTreeStructure {
         return records;
     }
 
+    /**
+     * sorts records on their value along the space-filling curve of this tree, used before packing records into nodes.
+     * The curve is normalized to the extent of the records being sorted, as only their order relative to each other matters.
+     */
+    protected void sortBySfc(List<SFCRTreeRecord> records) {
+        sortBySfc(records, this.spaceFillingCurve);
+    }
+
+    protected void sortBySfc(List<SFCRTreeRecord> records, SpaceFillingCurve curve) {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        MBR extent = curve == SpaceFillingCurve.LOW_X ? null : findExtent(records);
+        for (SFCRTreeRecord record : records) {
+            record.setSfcValue(curve.key(record.getMBR(), extent));
+        }
+        Collections.sort(records);
+    }
+
+    protected MBR findExtent(List<SFCRTreeRecord> records) {
+        float xLow = Float.MAX_VALUE;
+        float yLow = Float.MAX_VALUE;
+        float xHigh = -Float.MAX_VALUE;
+        float yHigh = -Float.MAX_VALUE;
+
+        for (SFCRTreeRecord record : records) {
+            xLow = Math.min(xLow, record.getMBR().getLow().getX());
+            yLow = Math.min(yLow, record.getMBR().getLow().getY());
+            xHigh = Math.max(xHigh, record.getMBR().getHigh().getX());
+            yHigh = Math.max(yHigh, record.getMBR().getHigh().getY());
+        }
+
+        float[] low = {xLow, yLow};
+        float[] high = {xHigh, yHigh};
+        return new MBR(low, high);
+    }
+
+    public SpaceFillingCurve getSpaceFillingCurve() {
+        return this.spaceFillingCurve;
+    }
+
+    public void setSpaceFillingCurve(SpaceFillingCurve spaceFillingCurve) {
+        this.spaceFillingCurve = spaceFillingCurve;
+    }
+
+    /**
+     * method for constructing the tree from scratch based on leaf records, replacing the current root
+     * large inputs are loaded in parallel by the ParallelBulkLoader
+     * @param records: leaf records, list of all leaf objects to put in tree
+     */
+    public void bulkLoad(ArrayList<SFCRTreeRecord> records) {
+        bulkLoad(records, records.size() >= PARALLEL_BULK_LOAD_THRESHOLD ? ForkJoinPool.commonPool() : null);
+    }
+
+    /**
+     * method for constructing the tree from scratch based on leaf records, replacing the current root
+     * @param records: leaf records, list of all leaf objects to put in tree
+     * @param pool: pool the ParallelBulkLoader packs the records in, or null to pack them level by level on this thread
+     */
+    public void bulkLoad(ArrayList<SFCRTreeRecord> records, ForkJoinPool pool) {
+        if (records.isEmpty()) {
+            setRoot(new SFCRTreeNode(createNodeId(), 0, new ArrayList<>()));
+            return;
+        }
+
+        if (pool != null) {
+            new ParallelBulkLoader(this, pool).bulkLoad(records);
+            return;
+        }
+
+        packLevels(records, 0);
+    }
+
+    /**
+     * packs records into nodes level by level, starting at the given height, until one node is left which is set as root
+     */
+    protected void packLevels(ArrayList<SFCRTreeRecord> records, int height) {
+        ArrayList<SFCRTreeNode> nodes;
+
+        while(true) {
+            if (this.bulkLoadStrategy == BulkLoadStrategy.SFC) {
+                sortBySfc(records);
+            }
+            nodes = createNodesInBulk(records, height);
+
+            if (nodes.size() == 1) {
+                setRoot(nodes.get(0));
+                break;
+            }
+            height ++;
+            records = createRecordsForNodes(nodes);
+        }
+    }
+
+    public BulkLoadStrategy getBulkLoadStrategy() {
+        return this.bulkLoadStrategy;
+    }
+
+    public void setBulkLoadStrategy(BulkLoadStrategy bulkLoadStrategy) {
+        this.bulkLoadStrategy = bulkLoadStrategy;
+    }
+
+    /**
+     * packs records into nodes of the given height, with the bulk-load strategy of the tree.
+     * SFC expects the records to be sorted by sortBySfc, STR does its own sorting.
+     */
     protected ArrayList<SFCRTreeNode> createNodesInBulk(ArrayList<SFCRTreeRecord> records, int height) {
+        if (this.bulkLoadStrategy == BulkLoadStrategy.STR) {
+            return createNodesInBulkSTR(records, height);
+        }
+
         ArrayList<SFCRTreeNode> nodes = new ArrayList<>();
 
         int numberOfNodes = (int) Math.ceil((double) records.size() / this.getM());
@@ -91,6 +210,26 @@ public abstract class SFCRTreeStructure extends RTreeStructure {
         return nodes;
     }
 
+    private ArrayList<SFCRTreeNode> createNodesInBulkSTR(ArrayList<SFCRTreeRecord> records, int height) {
+        float[] centerX = new float[records.size()];
+        float[] centerY = new float[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            MBR mbr = records.get(i).getMBR();
+            centerX[i] = (mbr.getLow().getX() + mbr.getHigh().getX()) / 2;
+            centerY[i] = (mbr.getLow().getY() + mbr.getHigh().getY()) / 2;
+        }
+
+        ArrayList<SFCRTreeNode> nodes = new ArrayList<>();
+        for (int[] nodeEntries : SortTileRecursive.tile(centerX, centerY, this.getM())) {
+            ArrayList<RTreeRecord> childRecords = new ArrayList<>(nodeEntries.length);
+            for (int index : nodeEntries) {
+                childRecords.add(records.get(index));
+            }
+            nodes.add(new SFCRTreeNode(createNodeId(), height, childRecords));
+        }
+        return nodes;
+    }
+
     public void incrementRecordCount() {
         this.recordCount++;
     }
@@ -129,12 +268,11 @@ public abstract class SFCRTreeStructure extends RTreeStructure {
     @Override
     protected RTreeRecord createRecord(RTreeNode node) {
         SFCRTreeNode castedNode = (SFCRTreeNode) node;
-        return new SFCRTreeRecord(castedNode.getMbr(), castedNode, castedNode.getLowX());
+        return new SFCRTreeRecord(castedNode.getMbr(), castedNode, SpaceFillingCurve.LOW_X.key(castedNode.getMbr(), null));
     }
 
     @Override
     public RTreeNode createNodeFromExistingNode(RTreeNode insertionNode) {
-        SFCRTreeNode castedNode = new SFCRTreeNode((SFCRTreeNode) insertionNode);
-        return new SFCRTreeNode(castedNode);
+        return new SFCRTreeNode((SFCRTreeNode) insertionNode);
     }
 }
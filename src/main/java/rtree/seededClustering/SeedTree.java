@@ -1,8 +1,12 @@
 package rtree.seededClustering;
 
+import rtree.base.EntryCoordinates;
+import rtree.base.MBR;
+import rtree.base.MBRKernels;
 import rtree.base.RTreeNode;
 import rtree.base.RTreeRecord;
 import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * Seed tree, used to create clusters for small trees to be inserted into main R-tree in C2.
@@ -11,9 +15,11 @@ import java.util.*;
  */
 
 public class SeedTree extends SFCRTreeStructure{
+    private static final int PARALLEL_ASSIGNMENT_THRESHOLD = 10000;
+
     private int k; // level of seed tree from the large tree, NB! given as level from top height (root = 0) reverse from the tree height..
     private Queue<SFCRTreeRecord> outliers;
-    private Hashtable<RTreeNode, ArrayList<SFCRTreeRecord>> clusters;
+    private HashMap<RTreeNode, ArrayList<SFCRTreeRecord>> clusters;
     private Queue<SFCRTreeRecord> incomingRecords;
 
     public SeedTree(int dimensions, int m, int M, int k, RTreeNode root, Queue<SFCRTreeRecord> incomingRecords) {
@@ -21,7 +27,7 @@ public class SeedTree extends SFCRTreeStructure{
 
         this.k = root.getHeight() - k; // need to calculate k from top to get correct level
         this.outliers = new LinkedList<>();
-        this.clusters = new Hashtable<>();
+        this.clusters = new HashMap<>();
         this.incomingRecords = new LinkedList<>(incomingRecords);
 
         constructClusters();
@@ -56,23 +62,62 @@ public class SeedTree extends SFCRTreeStructure{
                 this.outliers.addAll(this.incomingRecords);
             }
             else {
-                for (SFCRTreeRecord record : this.incomingRecords) {
-                    boolean added = false;
-                    for (RTreeNode node : this.clusters.keySet()) {
-                        if (node.getMbr().getAreaEnlargement(record.getMBR()) == 0) {
-                            if (!added) {
-                                this.clusters.get(node).add(record);
-                                added = true;
-                                continue;
-                            }
-                        }
-                    }
-                    if (!added) {
-                        this.outliers.add(record);
-                    }
+                assignRecordsToClusters();
+            }
+        }
+    }
+
+    /**
+     * assigns every incoming record to a seed node covering it, found by descending the levels above the seed level
+     * only through entries covering the record, so the cost per record grows with the height of the tree and not with
+     * the number of seed nodes. Large batches are assigned in parallel, and grouped in their incoming order afterwards
+     */
+    private void assignRecordsToClusters() {
+        SFCRTreeRecord[] records = this.incomingRecords.toArray(new SFCRTreeRecord[0]);
+        RTreeNode[] seedNodes = new RTreeNode[records.length];
+        IntStream indices = IntStream.range(0, records.length);
+        if (records.length >= PARALLEL_ASSIGNMENT_THRESHOLD) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> seedNodes[i] = findCoveringSeedNode(getRoot(), records[i].getMBR()));
+
+        for (int i = 0; i < records.length; i++) {
+            if (seedNodes[i] == null) {
+                this.outliers.add(records[i]);
+            }
+            else {
+                this.clusters.get(seedNodes[i]).add(records[i]);
+            }
+        }
+    }
+
+    /**
+     * first node on the seed level below node covering mbr, or null if there is none. A node covering mbr can only be
+     * below entries that also cover it, so the other entries are skipped
+     */
+    private RTreeNode findCoveringSeedNode(RTreeNode node, MBR mbr) {
+        EntryCoordinates entries = node.getEntryCoordinates();
+        float[] enlargedAreas = new float[entries.size()];
+        MBRKernels.get().enlargedAreas(entries, mbr, enlargedAreas);
+
+        for (int i = 0; i < entries.size(); i++) {
+            if ((double) enlargedAreas[i] - entries.area(i) != 0) {
+                continue;
+            }
+            RTreeNode child = node.getRecords().get(i).getChild();
+            if (child.getHeight() == this.k) {
+                if (child.getMbr().getAreaEnlargement(mbr) == 0) {
+                    return child;
+                }
+            }
+            else {
+                RTreeNode seedNode = findCoveringSeedNode(child, mbr);
+                if (seedNode != null) {
+                    return seedNode;
                 }
             }
         }
+        return null;
     }
 
     private void findCorrectLevelAndSetClusterKeys(ArrayList<RTreeRecord> records) {
@@ -154,7 +199,7 @@ public class SeedTree extends SFCRTreeStructure{
         return outliers;
     }
 
-    public Hashtable<RTreeNode, ArrayList<SFCRTreeRecord>> getClusters() {
+    public HashMap<RTreeNode, ArrayList<SFCRTreeRecord>> getClusters() {
         return this.clusters;
     }
 }
@@ -1,10 +1,9 @@
 package rtree.seededClustering;
 
 import java.util.ArrayList;
-import java.util.Collections;
 
 /**
- * RTree created by bulk-loading (packing method of RTree, ordering done by lowX-value)
+ * RTree created by bulk-loading (packing method of RTree, ordering done by a space-filling curve or Sort-Tile-Recursive)
  *
  * @author Mari Sofie Lerfaldet <marisler@stud.ntnu>
  */
@@ -13,33 +12,22 @@ public class SmallRTree extends SFCRTreeStructure {
     private int heightOfSeedNode;
 
     public SmallRTree(int dimensions, int m, int M, ArrayList<SFCRTreeRecord> records, int nodeIdOfSeed, int heightOfSeedNode) {
+        this(dimensions, m, M, records, nodeIdOfSeed, heightOfSeedNode, SpaceFillingCurve.LOW_X);
+    }
+
+    public SmallRTree(int dimensions, int m, int M, ArrayList<SFCRTreeRecord> records, int nodeIdOfSeed, int heightOfSeedNode, SpaceFillingCurve spaceFillingCurve) {
+        this(dimensions, m, M, records, nodeIdOfSeed, heightOfSeedNode, spaceFillingCurve, BulkLoadStrategy.SFC);
+    }
+
+    public SmallRTree(int dimensions, int m, int M, ArrayList<SFCRTreeRecord> records, int nodeIdOfSeed, int heightOfSeedNode, SpaceFillingCurve spaceFillingCurve, BulkLoadStrategy bulkLoadStrategy) {
         super(dimensions, m, M, records.size());
         this.nodeIdOfSeed = nodeIdOfSeed;
         this.heightOfSeedNode = heightOfSeedNode;
+        setSpaceFillingCurve(spaceFillingCurve);
+        setBulkLoadStrategy(bulkLoadStrategy);
         bulkLoad(records);
     }
 
-    /**
-     * method for constructing a RTree from scratch based on leaf records
-     * @param records: leaf records, list of all leaf objects to put in tree
-     */
-    public void bulkLoad(ArrayList<SFCRTreeRecord> records) {
-        int height = 0;
-        ArrayList<SFCRTreeNode> nodes;
-
-        while(true) {
-            Collections.sort(records);
-            nodes = createNodesInBulk(records, height);
-
-            if (nodes.size() == 1) {
-                setRoot(nodes.get(0));
-                break;
-            }
-            height ++;
-            records = createRecordsForNodes(nodes);
-        }
-    }
-
     public int getNodeIdOfSeed() {
         return nodeIdOfSeed;
     }
@@ -0,0 +1,77 @@
+package rtree.seededClustering;
+
+import rtree.base.MBR;
+import rtree.base.SortTileRecursive;
+
+/**
+ * Space-filling curves used as sort key when packing nodes in the seeded clustering method.
+ * LOW_X is the original ordering by lowX-value, kept at full float precision. Z_ORDER and HILBERT map the center of an
+ * MBR, normalized to the extent of the records being packed, to its position on a 2^31 x 2^31 grid along the curve.
+ */
+public enum SpaceFillingCurve {
+    LOW_X,
+    Z_ORDER,
+    HILBERT;
+
+    private static final int ORDER = 31;
+    private static final long GRID_SIZE = 1L << ORDER;
+
+    /**
+     * @param mbr - mbr of the record to find the key for
+     * @param extent - extent of all records sorted together, used for normalizing the coordinates
+     */
+    public long key(MBR mbr, MBR extent) {
+        if (this == LOW_X) {
+            return SortTileRecursive.sortableBits(mbr.getLow().getX());
+        }
+
+        long x = normalize((double) mbr.getLow().getX() + mbr.getHigh().getX(), extent.getLow().getX(), extent.getHigh().getX());
+        long y = normalize((double) mbr.getLow().getY() + mbr.getHigh().getY(), extent.getLow().getY(), extent.getHigh().getY());
+
+        if (this == Z_ORDER) {
+            return interleave(x) | (interleave(y) << 1);
+        }
+        return hilbertIndex(x, y);
+    }
+
+    // takes the doubled center coordinate, to avoid dividing every center by two
+    private static long normalize(double doubledCenter, double low, double high) {
+        if (high <= low) {
+            return 0;
+        }
+        double position = (doubledCenter / 2 - low) / (high - low);
+        long cell = (long) (position * GRID_SIZE);
+        return Math.max(0, Math.min(GRID_SIZE - 1, cell));
+    }
+
+    // spreads the 31 lower bits of value out to the even bit positions
+    private static long interleave(long value) {
+        value &= 0x7FFFFFFFL;
+        value = (value | (value << 16)) & 0x0000FFFF0000FFFFL;
+        value = (value | (value << 8)) & 0x00FF00FF00FF00FFL;
+        value = (value | (value << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        value = (value | (value << 2)) & 0x3333333333333333L;
+        value = (value | (value << 1)) & 0x5555555555555555L;
+        return value;
+    }
+
+    private static long hilbertIndex(long x, long y) {
+        long index = 0;
+        for (long s = GRID_SIZE / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += s * s * ((3 * rx) ^ ry);
+
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = GRID_SIZE - 1 - x;
+                    y = GRID_SIZE - 1 - y;
+                }
+                long temp = x;
+                x = y;
+                y = temp;
+            }
+        }
+        return index;
+    }
+}
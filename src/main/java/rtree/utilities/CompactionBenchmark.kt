@@ -0,0 +1,323 @@
+package rtree.utilities
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import rtree.base.DataObject
+import rtree.base.MBR
+import rtree.merging.CompactionPolicy
+import rtree.merging.LSMRTree
+import rtree.merging.LazyLeveledCompaction
+import rtree.merging.LeveledCompaction
+import rtree.merging.RepackThresholds
+import rtree.merging.TieredCompaction
+import rtree.merging.TuningBounds
+import java.util.Random
+import kotlin.system.measureTimeMillis
+
+/**
+ * Compares the compaction policies of the merging LSM-tree. The same data is inserted with each policy, and the insert
+ * time including all merges, the write amplification, the number of runs left and the average number of nodes
+ * accessed by the window queries are reported.
+ */
+class CompactionBenchmark(
+    private val T: Int,
+    private val minRecords: Int,
+    private val maxRecords: Int,
+    private val memTableSize: Int
+) {
+
+    fun comparePolicies(data: List<DataObject>, queries: List<MBR>) {
+        val policies: List<Pair<String, CompactionPolicy>> = listOf(
+            Pair("leveled", LeveledCompaction()),
+            Pair("tiered", TieredCompaction(T)),
+            Pair("lazy-leveled", LazyLeveledCompaction(T, lazyLevels(data.size)))
+        )
+
+        println("policy        insert ms  write amp  runs  nodes/query")
+        for ((name, policy) in policies) {
+            val lsmTree = LSMRTree(T, minRecords, maxRecords, memTableSize, compactionPolicy = policy)
+            try {
+                val insertTime = measureTimeMillis {
+                    runBlocking {
+                        for (d in data) {
+                            lsmTree.insert(d)
+                        }
+                        lsmTree.waitForMemTableMerges()
+                        lsmTree.waitForMergeJobs()
+                    }
+                }
+
+                var nodesAccessed = 0L
+                for (query in queries) {
+                    nodesAccessed += lsmTree.search(query).second
+                }
+                println(String.format("%-13s %9d %10.2f %5d %12.1f", name, insertTime, lsmTree.getWriteAmplification(),
+                    lsmTree.getRunCount(), nodesAccessed.toDouble() / queries.size))
+            } finally {
+                lsmTree.close()
+            }
+        }
+    }
+
+    /**
+     * Levels for lazy leveling, down to the deepest level a leveled LSM-tree fills with the data. The last level takes in
+     * the rest.
+     */
+    private fun lazyLevels(recordCount: Int): Int {
+        var levels = 1
+        var capacity = memTableSize.toLong() * T
+        while (capacity * T <= recordCount) {
+            levels++
+            capacity *= T
+        }
+        return levels
+    }
+
+    /**
+     * Inserts the data with leveled compaction, moving whole levels and moving only the partitions of a level touched
+     * by new data. Reports the records moved between levels per record flushed and the longest single merge.
+     */
+    fun comparePartialCompaction(data: List<DataObject>, queries: List<MBR>) {
+        println("partial  insert ms  moved/flushed  longest merge ms  nodes/query")
+        for (partialCompaction in listOf(false, true)) {
+            val lsmTree = LSMRTree(T, minRecords, maxRecords, memTableSize, partialCompaction = partialCompaction)
+            try {
+                val insertTime = measureTimeMillis {
+                    runBlocking {
+                        for (d in data) {
+                            lsmTree.insert(d)
+                        }
+                        lsmTree.waitForMemTableMerges()
+                        lsmTree.waitForMergeJobs()
+                    }
+                }
+
+                var nodesAccessed = 0L
+                for (query in queries) {
+                    nodesAccessed += lsmTree.search(query).second
+                }
+                println(String.format("%-8s %9d %14.2f %17d %12.1f", partialCompaction, insertTime,
+                    lsmTree.getCompactionAmplification(), lsmTree.getLongestMergeMillis(),
+                    nodesAccessed.toDouble() / queries.size))
+            } finally {
+                lsmTree.close()
+            }
+        }
+    }
+
+    /**
+     * Inserts the data with leveled and tiered compaction, merging runs only with mergeTrees and choosing between
+     * mergeTrees and a rebuild by the cost model. Reports how often each was chosen and the average overlap the cost
+     * model predicted.
+     */
+    fun compareRebuildMerges(data: List<DataObject>, queries: List<MBR>) {
+        val policies: List<Pair<String, CompactionPolicy>> = listOf(
+            Pair("leveled", LeveledCompaction()),
+            Pair("tiered", TieredCompaction(T))
+        )
+
+        println("policy   rebuild  insert ms  tree merges  rebuilds  predicted overlap  nodes/query")
+        for ((name, policy) in policies) {
+            for (rebuildMerges in listOf(false, true)) {
+                val lsmTree = LSMRTree(T, minRecords, maxRecords, memTableSize, compactionPolicy = policy,
+                    rebuildMerges = rebuildMerges)
+                try {
+                    val insertTime = measureTimeMillis {
+                        runBlocking {
+                            for (d in data) {
+                                lsmTree.insert(d)
+                            }
+                            lsmTree.waitForMergeJobs()
+                        }
+                    }
+
+                    var nodesAccessed = 0L
+                    for (query in queries) {
+                        nodesAccessed += lsmTree.search(query).second
+                    }
+                    println(String.format("%-8s %-7s %10d %12d %9d %18.2f %12.1f", name, rebuildMerges, insertTime,
+                        lsmTree.getTreeMergeCount(), lsmTree.getRebuildCount(), lsmTree.getAveragePredictedOverlap(),
+                        nodesAccessed.toDouble() / queries.size))
+                } finally {
+                    lsmTree.close()
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts the data merging runs only with mergeTrees, without and with repacking of degraded runs in the
+     * background, sampled every repackIntervalMillis. After the inserts the repacks are given two samplings to finish.
+     * Reports the repacks done and discarded, the overlap ratio and fill factor of the runs, averaged over the runs, and
+     * the nodes accessed per query.
+     */
+    fun compareRepacking(data: List<DataObject>, queries: List<MBR>, repackIntervalMillis: Long) {
+        println("repack  insert ms  repacks  discarded  overlap  fill factor  nodes/query")
+        for (repack in listOf(false, true)) {
+            val lsmTree = LSMRTree(T, minRecords, maxRecords, memTableSize, rebuildMerges = false,
+                repackThresholds = if (repack) RepackThresholds() else null, repackIntervalMillis = repackIntervalMillis)
+            try {
+                val insertTime = measureTimeMillis {
+                    runBlocking {
+                        for (d in data) {
+                            lsmTree.insert(d)
+                        }
+                        lsmTree.waitForMergeJobs()
+                    }
+                }
+                runBlocking {
+                    delay(2 * repackIntervalMillis)
+                    lsmTree.waitForMergeJobs()
+                }
+
+                var nodesAccessed = 0L
+                for (query in queries) {
+                    nodesAccessed += lsmTree.search(query).second
+                }
+                val runs = lsmTree.ssTables.flatten()
+                println(String.format("%-7s %9d %8d %10d %8.3f %12.1f %12.1f", repack, insertTime,
+                    lsmTree.getRepackCount(), lsmTree.getDiscardedRepackCount(),
+                    runs.map { it.checkOverlapRatio() }.filter { !it.isNaN() }.average(),
+                    runs.map { it.checkFillFactor() }.average(), nodesAccessed.toDouble() / queries.size))
+            } finally {
+                lsmTree.close()
+            }
+        }
+    }
+
+    /**
+     * Inserts the data with the merges limited to compactionRate records per second, so they fall behind the writer,
+     * without and with the write controller. Reports the insert latencies, the highest merge debt seen at each MemTable
+     * flush and the time the writer was held back by the controller. The data is inserted once first to warm up.
+     */
+    fun compareWriteStalls(data: List<DataObject>, compactionRate: Double) {
+        val warmUp = LSMRTree(T, minRecords, maxRecords, memTableSize)
+        try {
+            runBlocking {
+                for (d in data) {
+                    warmUp.insert(d)
+                }
+                warmUp.waitForMergeJobs()
+            }
+        } finally {
+            warmUp.close()
+        }
+
+        println("controller  insert ms  p99 us  max ms  max debt  stalled ms")
+        for (controller in listOf(false, true)) {
+            val lsmTree = if (controller) {
+                LSMRTree(T, minRecords, maxRecords, memTableSize, compactionRate = compactionRate)
+            } else {
+                LSMRTree(T, minRecords, maxRecords, memTableSize, compactionRate = compactionRate,
+                    writeSlowdownDebt = Long.MAX_VALUE, writeStopDebt = Long.MAX_VALUE)
+            }
+            try {
+                val latencies = LongArray(data.size)
+                var maxDebt = 0L
+                val insertTime = measureTimeMillis {
+                    runBlocking {
+                        for ((i, d) in data.withIndex()) {
+                            val start = System.nanoTime()
+                            lsmTree.insert(d)
+                            latencies[i] = System.nanoTime() - start
+                            if (i % memTableSize == 0) {
+                                maxDebt = maxOf(maxDebt, lsmTree.getMergeDebt())
+                            }
+                        }
+                        lsmTree.waitForMemTableMerges()
+                        lsmTree.waitForMergeJobs()
+                    }
+                }
+
+                latencies.sort()
+                println(String.format("%-10s %10d %7d %7d %9d %11d", controller, insertTime,
+                    latencies[(latencies.size * 0.99).toInt()] / 1000, latencies.last() / 1_000_000, maxDebt,
+                    lsmTree.getWriteStallMillis()))
+            } finally {
+                lsmTree.close()
+            }
+        }
+    }
+
+    /**
+     * Alternates write-heavy phases, inserting ingestSize records with a query for every 200 inserts, and read-heavy
+     * phases, inserting a tenth as many with 10 queries for every insert, with fixed and with tuned size ratios and
+     * flush size. Reports the time of
+     * each phase, and the size ratios and flush size the tuner has chosen at the end of it.
+     */
+    fun compareTuning(data: List<DataObject>, queries: List<MBR>, ingestSize: Int, bounds: TuningBounds) {
+        val fixed = LSMRTree(T, minRecords, maxRecords, memTableSize)
+        val tuned = LSMRTree(T, minRecords, maxRecords, memTableSize, tuningBounds = bounds)
+        try {
+            println("phase     fixed ms  tuned ms  ratios        flush size")
+            var inserted = 0
+            var queried = 0
+            var phase = 0
+            while (inserted < data.size) {
+                val writeHeavy = phase % 2 == 0
+                val inserts = minOf(if (writeHeavy) ingestSize else ingestSize / 10, data.size - inserted)
+                val queriesPerInsert = if (writeHeavy) 1.0 / 200 else 10.0
+                val times = listOf(fixed, tuned).map { lsmTree ->
+                    measureTimeMillis {
+                        runBlocking {
+                            var pendingQueries = 0.0
+                            for (i in inserted until inserted + inserts) {
+                                lsmTree.insert(data[i])
+                                pendingQueries += queriesPerInsert
+                                while (pendingQueries >= 1) {
+                                    lsmTree.search(queries[(queried + i) % queries.size])
+                                    pendingQueries--
+                                }
+                            }
+                            lsmTree.waitForMergeJobs()
+                        }
+                    }
+                }
+                inserted += inserts
+                queried += inserts
+                val ratios = (0 until tuned.ssTables.size).map { tuned.getSizeRatio(it) }
+                println(String.format("%-9s %9d %9d  %-13s %10d", if (writeHeavy) "write" else "read", times[0],
+                    times[1], ratios.joinToString(","), tuned.getFlushSize()))
+                phase++
+            }
+        } finally {
+            fixed.close()
+            tuned.close()
+        }
+    }
+}
+
+/**
+ * Inserts 200000 clustered points, or the given number of points, with T=4 and MemTables of 2000 records.
+ * Partial compaction is compared on the same points arriving one region of an 8x8 grid at a time, merging by rebuild
+ * on the points in both orders, and the write controller with the merges limited to 50000 records per second. Runs
+ * are repacked in the background sampled every 200 ms, and the tuner is compared on alternating write-heavy and
+ * read-heavy phases.
+ */
+fun main(args: Array<String>) {
+    val count = if (args.isNotEmpty()) args[0].toInt() else 200000
+    val extent = MBR(floatArrayOf(0f, 0f), floatArrayOf(100000f, 100000f))
+    val data = PackingBenchmark.clusteredPoints(count, extent, 50, Random(42))
+    val queries = PackingBenchmark.windowQueries(1000, extent, 0.0001, Random(7))
+
+    val benchmark = CompactionBenchmark(4, 20, 50, 2000)
+    benchmark.comparePolicies(data, queries)
+
+    val cellWidth = (extent.high.x - extent.low.x) / 8
+    val cellHeight = (extent.high.y - extent.low.y) / 8
+    val dataByRegion = data.sortedBy {
+        val column = ((it.lowX - extent.low.x) / cellWidth).toInt().coerceIn(0, 7)
+        val row = ((it.lowY - extent.low.y) / cellHeight).toInt().coerceIn(0, 7)
+        row * 8 + column
+    }
+    benchmark.comparePartialCompaction(dataByRegion, queries)
+
+    benchmark.compareRebuildMerges(data, queries)
+    benchmark.compareRebuildMerges(dataByRegion, queries)
+
+    benchmark.compareRepacking(data, queries, 200)
+
+    benchmark.compareWriteStalls(data, 50000.0)
+
+    benchmark.compareTuning(data, queries, count / 5, TuningBounds(2, 10, 1000, 8000))
+}
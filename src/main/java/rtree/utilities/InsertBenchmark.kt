@@ -0,0 +1,147 @@
+package rtree.utilities
+
+import rtree.base.AngTanSplit
+import rtree.base.DataObject
+import rtree.base.LinearSplit
+import rtree.base.MBR
+import rtree.base.QuadraticSplit
+import rtree.base.RStarSplit
+import rtree.base.SplitPolicy
+import rtree.guttmann.GuttmannRTree
+import rtree.merging.MergeTreeStructure
+import rtree.seededClustering.LargeRTree
+import rtree.seededClustering.SFCRTreeRecord
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+/**
+ * Measures one-by-one insertion and merging of trees, the operations that adjust MBRs upwards along the insertion path.
+ * For every node size M the same data is inserted into a Guttman R-tree, a large tree of the seeded LSM-tree and merge
+ * trees, and a number of merge trees are merged into one target tree. Reported as inserted records per second.
+ */
+class InsertBenchmark(private val nodeSizes: List<Int>, private val rounds: Int) {
+
+    fun run(data: ArrayList<DataObject>, mergedTrees: Int) {
+        println("M     guttmann inserts/s  large tree inserts/s  merge tree inserts/s  merged records/s")
+        val records = data.map { SFCRTreeRecord(MBR(floatArrayOf(it.lowX, it.lowY), floatArrayOf(it.highX, it.highY)), it) }
+        for (M in nodeSizes) {
+            val m = M * 2 / 5
+            var guttmannNanos = Long.MAX_VALUE
+            var largeTreeNanos = Long.MAX_VALUE
+            var mergeTreeNanos = Long.MAX_VALUE
+            var mergeNanos = Long.MAX_VALUE
+
+            // the best of the rounds is reported, the first rounds also warm up the JIT
+            for (round in 0 until rounds) {
+                guttmannNanos = minOf(guttmannNanos, measureNanoTime {
+                    GuttmannRTree(2, m, M).insertData(data)
+                })
+                largeTreeNanos = minOf(largeTreeNanos, measureNanoTime {
+                    val tree = LargeRTree(2, m, M)
+                    for (record in records) {
+                        tree.insert(record)
+                    }
+                })
+                mergeTreeNanos = minOf(mergeTreeNanos, measureNanoTime {
+                    createMergeTree(m, M, data)
+                })
+
+                val chunkSize = data.size / mergedTrees
+                val trees = List(mergedTrees) { createMergeTree(m, M, ArrayList(data.subList(it * chunkSize, (it + 1) * chunkSize))) }
+                mergeNanos = minOf(mergeNanos, measureNanoTime {
+                    val target = trees[0]
+                    for (i in 1 until trees.size) {
+                        target.mergeTrees(trees[i])
+                    }
+                })
+            }
+
+            val mergedRecords = (data.size / mergedTrees) * (mergedTrees - 1)
+            println(String.format("%-5d %19.0f %21.0f %21.0f %17.0f", M, perSecond(data.size, guttmannNanos),
+                perSecond(data.size, largeTreeNanos), perSecond(data.size, mergeTreeNanos), perSecond(mergedRecords, mergeNanos)))
+        }
+    }
+
+    /**
+     * Inserts the data into merge trees with and without R* forced reinsertion, and reports the insert time, the
+     * overlap ratio from checkOverlapRatio and the average number of nodes accessed by the window queries.
+     */
+    fun compareReinsertion(data: ArrayList<DataObject>, queries: List<MBR>) {
+        println("M     reinsertion  insert ms  reinsertions  overlap ratio  nodes/query")
+        for (M in nodeSizes) {
+            val m = M * 2 / 5
+            for (forcedReinsertion in listOf(false, true)) {
+                lateinit var tree: MergeTreeStructure
+                val insertTime = measureNanoTime {
+                    tree = createMergeTree(m, M, data, forcedReinsertion)
+                } / 1_000_000
+
+                var nodesAccessed = 0L
+                for (query in queries) {
+                    nodesAccessed += tree.search(query).second
+                }
+                println(String.format("%-5d %-12s %9d %13d %14.4f %12.1f", M, forcedReinsertion, insertTime,
+                    tree.reinsertCount, tree.checkOverlapRatio(), nodesAccessed.toDouble() / queries.size))
+            }
+        }
+    }
+
+    /**
+     * Inserts the data into merge trees splitting with each split policy, and reports the insert time, the overlap
+     * ratio from checkOverlapRatio and the average number of nodes accessed by the window queries.
+     */
+    fun compareSplitPolicies(data: ArrayList<DataObject>, queries: List<MBR>) {
+        val policies = listOf(LinearSplit(), AngTanSplit(), QuadraticSplit(), RStarSplit())
+        println("M     split policy    insert ms  overlap ratio  nodes/query")
+        for (M in nodeSizes) {
+            val m = M * 2 / 5
+            for (policy in policies) {
+                lateinit var tree: MergeTreeStructure
+                val insertTime = measureNanoTime {
+                    tree = createMergeTree(m, M, data, splitPolicy = policy)
+                } / 1_000_000
+
+                var nodesAccessed = 0L
+                for (query in queries) {
+                    nodesAccessed += tree.search(query).second
+                }
+                println(String.format("%-5d %-15s %9d %14.4f %12.1f", M, policy.javaClass.simpleName, insertTime,
+                    tree.checkOverlapRatio(), nodesAccessed.toDouble() / queries.size))
+            }
+        }
+    }
+
+    private fun createMergeTree(
+        m: Int,
+        M: Int,
+        data: ArrayList<DataObject>,
+        forcedReinsertion: Boolean = false,
+        splitPolicy: SplitPolicy = QuadraticSplit()
+    ): MergeTreeStructure {
+        val tree = MergeTreeStructure(2, m, M)
+        tree.forcedReinsertion = forcedReinsertion
+        tree.splitPolicy = splitPolicy
+        tree.createEmptyRoot()
+        tree.insertData(data)
+        return tree
+    }
+
+    private fun perSecond(records: Int, nanos: Long): Double {
+        return records / (nanos / 1e9)
+    }
+}
+
+/**
+ * Inserts 100000 clustered points, or the given number of points, at M=50 and M=100
+ */
+fun main(args: Array<String>) {
+    val count = if (args.isNotEmpty()) args[0].toInt() else 100000
+    val extent = MBR(floatArrayOf(0f, 0f), floatArrayOf(100000f, 100000f))
+    val data = ArrayList(PackingBenchmark.clusteredPoints(count, extent, 50, Random(42)))
+
+    val benchmark = InsertBenchmark(listOf(50, 100), 3)
+    benchmark.run(data, 10)
+    val queries = PackingBenchmark.windowQueries(1000, extent, 0.0001, Random(7))
+    benchmark.compareReinsertion(data, queries)
+    benchmark.compareSplitPolicies(data, queries)
+}
@@ -0,0 +1,88 @@
+package rtree.utilities
+
+import rtree.base.DataObject
+import rtree.base.EntryCoordinates
+import rtree.base.MBR
+import rtree.base.MBRKernels
+import rtree.guttmann.GuttmannRTreeRecord
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+/**
+ * Compares the scalar and the Vector API implementation of MBRKernels on nodes of M entries, reported as entries
+ * processed per microsecond for each kernel. Both implementations are run on the same nodes and MBRs, and their results
+ * are checked to be equal. Run with the classes of src/vector/java and --add-modules jdk.incubator.vector, otherwise
+ * both columns use the scalar kernels.
+ *
+ * Trees use the kernels selected by -Drtree.kernels=vector, so InsertBenchmark and PackingBenchmark run with and
+ * without the property compare insertion and query cost of whole trees.
+ */
+class KernelBenchmark(private val nodeSizes: List<Int>, private val nodes: Int, private val rounds: Int) {
+
+    private val scalar = MBRKernels.create(false)
+    private val vector = MBRKernels.create(true)
+
+    fun run(random: Random) {
+        println("M     kernel             scalar entries/us  vector entries/us")
+        for (M in nodeSizes) {
+            val entries = List(nodes) { EntryCoordinates(randomRecords(M, random)) }
+            val mbrs = List(nodes) { randomMBR(random) }
+
+            val floats = FloatArray(M)
+            val expectedFloats = FloatArray(M)
+            val mask = BooleanArray(M)
+            val expectedMask = BooleanArray(M)
+            for (i in entries.indices) {
+                scalar.enlargedAreas(entries[i], mbrs[i], expectedFloats)
+                vector.enlargedAreas(entries[i], mbrs[i], floats)
+                check(floats.contentEquals(expectedFloats)) { "enlarged areas differ" }
+                scalar.overlapAreas(entries[i], mbrs[i], expectedFloats)
+                vector.overlapAreas(entries[i], mbrs[i], floats)
+                check(floats.contentEquals(expectedFloats)) { "overlap areas differ" }
+                scalar.intersectionMask(entries[i], mbrs[i], expectedMask)
+                vector.intersectionMask(entries[i], mbrs[i], mask)
+                check(mask.contentEquals(expectedMask)) { "intersection masks differ" }
+            }
+
+            report(M, "enlargedAreas", entries) { kernels -> entries.indices.forEach { kernels.enlargedAreas(entries[it], mbrs[it], floats) } }
+            report(M, "overlapAreas", entries) { kernels -> entries.indices.forEach { kernels.overlapAreas(entries[it], mbrs[it], floats) } }
+            report(M, "intersectionMask", entries) { kernels -> entries.indices.forEach { kernels.intersectionMask(entries[it], mbrs[it], mask) } }
+        }
+    }
+
+    private fun report(M: Int, kernel: String, entries: List<EntryCoordinates>, pass: (MBRKernels) -> Unit) {
+        val processed = entries.size.toLong() * M
+        println(String.format("%-5d %-18s %17.1f %18.1f", M, kernel, perMicrosecond(processed, bestTime(scalar, pass)),
+            perMicrosecond(processed, bestTime(vector, pass))))
+    }
+
+    // the best of the rounds is reported, the first rounds also warm up the JIT
+    private fun bestTime(kernels: MBRKernels, pass: (MBRKernels) -> Unit): Long {
+        var best = Long.MAX_VALUE
+        for (round in 0 until rounds) {
+            best = minOf(best, measureNanoTime { pass(kernels) })
+        }
+        return best
+    }
+
+    private fun perMicrosecond(entries: Long, nanos: Long): Double {
+        return entries / (nanos / 1e3)
+    }
+
+    private fun randomRecords(count: Int, random: Random): List<GuttmannRTreeRecord> {
+        return List(count) {
+            val mbr = randomMBR(random)
+            GuttmannRTreeRecord(mbr, DataObject(mbr.low.x, mbr.low.y, mbr.high.x, mbr.high.y))
+        }
+    }
+
+    private fun randomMBR(random: Random): MBR {
+        val x = random.nextFloat() * 100000
+        val y = random.nextFloat() * 100000
+        return MBR(floatArrayOf(x, y), floatArrayOf(x + random.nextFloat() * 5000, y + random.nextFloat() * 5000))
+    }
+}
+
+fun main() {
+    KernelBenchmark(listOf(50, 100), 10000, 20).run(Random(42))
+}
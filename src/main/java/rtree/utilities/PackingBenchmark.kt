@@ -0,0 +1,247 @@
+package rtree.utilities
+
+import lsmrtree.LSMRTree
+import rtree.base.DataObject
+import rtree.base.MBR
+import rtree.base.RTreeNode
+import rtree.seededClustering.BulkLoadStrategy
+import rtree.seededClustering.SFCRTreeRecord
+import rtree.seededClustering.SmallRTree
+import rtree.seededClustering.SpaceFillingCurve
+import java.util.LinkedList
+import java.util.Random
+import java.util.concurrent.ForkJoinPool
+import kotlin.system.measureTimeMillis
+
+/**
+ * Compares the space-filling curves and Sort-Tile-Recursive used for packing in the seeded clustering method. For every
+ * packing a SmallRTree is bulk-loaded from the start data, and the rest of the data is inserted through the seeded
+ * clustering LSM-tree, which takes over the bulk-loaded tree as C2. The average number of nodes accessed by the same
+ * window queries is reported for both trees. Packing quality of the bulk-loaded tree is reported as the average leaf
+ * node area and the average overlap ratio between sibling nodes.
+ */
+class PackingBenchmark(
+    private val m: Int,
+    private val M: Int,
+    private val memTableSize: Int,
+    private val T: Int
+) {
+
+    fun compareCurves(startData: List<DataObject>, insertData: List<DataObject>, queries: List<MBR>) {
+        println("packing    bulk-load ms  leaf area     sibling overlap  nodes/query (bulk-loaded)  insert ms  nodes/query (after inserts)")
+        val packings = SpaceFillingCurve.values().map { Pair(it, BulkLoadStrategy.SFC) } +
+                Pair(SpaceFillingCurve.LOW_X, BulkLoadStrategy.STR)
+        for ((curve, strategy) in packings) {
+            lateinit var startTree: SmallRTree
+            val bulkLoadTime = measureTimeMillis {
+                startTree = SmallRTree(2, m, M, toRecords(startData), -1, -1, curve, strategy)
+            }
+            val startTreeCost = averageNodesAccessed(queries) { query, results -> startTree.search(query, results) }
+            val leafArea = averageLeafArea(startTree.root)
+            val siblingOverlap = siblingOverlapRatios(startTree.root).average()
+
+            val lsmTree = LSMRTree(memTableSize, 1.0, T, startTree)
+            lsmTree.setSpaceFillingCurve(curve)
+            lsmTree.setBulkLoadStrategy(strategy)
+            val insertTime = measureTimeMillis {
+                lsmTree.run(LinkedList(insertData))
+            }
+            val largeTree = lsmTree.c2.largeTree
+            val largeTreeCost = averageNodesAccessed(queries) { query, results -> largeTree.search(query, results) }
+
+            val label = if (strategy == BulkLoadStrategy.STR) "STR" else curve.toString()
+            println(String.format("%-10s %12d %12.4g %16.4f %26.1f %10d %28.1f", label, bulkLoadTime, leafArea, siblingOverlap, startTreeCost, insertTime, largeTreeCost))
+        }
+    }
+
+    /**
+     * Inserts the same data through the seeded clustering LSM-tree level by level on one thread, and as a pipeline with
+     * C1 and C2 on their own threads. The busy times show which stage bounds the throughput of the pipeline.
+     */
+    fun comparePipelining(startData: List<DataObject>, insertData: List<DataObject>, queries: List<MBR>) {
+        println("run          insert ms  C0 busy ms  C1 busy ms  C2 busy ms  nodes/query")
+        for (pipelined in listOf(false, true)) {
+            val startTree = SmallRTree(2, m, M, toRecords(startData), -1, -1, SpaceFillingCurve.HILBERT, BulkLoadStrategy.SFC)
+            val lsmTree = LSMRTree(memTableSize, 1.0, T, startTree)
+            lsmTree.setSpaceFillingCurve(SpaceFillingCurve.HILBERT)
+            val insertTime = measureTimeMillis {
+                if (pipelined) lsmTree.run(LinkedList(insertData)) else lsmTree.runSequential(LinkedList(insertData))
+            }
+            val largeTree = lsmTree.c2.largeTree
+            val largeTreeCost = averageNodesAccessed(queries) { query, results -> largeTree.search(query, results) }
+
+            val label = if (pipelined) "pipelined" else "sequential"
+            println(String.format("%-12s %10d %11d %11d %11d %12.1f", label, insertTime, lsmTree.c0BusyMillis, lsmTree.c1BusyMillis, lsmTree.c2BusyMillis, largeTreeCost))
+        }
+    }
+
+    /**
+     * Inserts the same data through the seeded clustering LSM-tree with the large tree repacking all leaves below the
+     * overlapping entries, and only the overlapping leaves. Repack time is summed over the threads inserting into C2.
+     */
+    fun compareRepacking(startData: List<DataObject>, insertData: List<DataObject>, queries: List<MBR>) {
+        println("repack        insert ms  repacks  repack ms  records repacked  nodes/query")
+        for (incremental in listOf(false, true)) {
+            val startTree = SmallRTree(2, m, M, toRecords(startData), -1, -1, SpaceFillingCurve.HILBERT, BulkLoadStrategy.SFC)
+            val lsmTree = LSMRTree(memTableSize, 1.0, T, startTree)
+            lsmTree.setSpaceFillingCurve(SpaceFillingCurve.HILBERT)
+            val largeTree = lsmTree.c2.largeTree
+            largeTree.setIncrementalRepack(incremental)
+            val insertTime = measureTimeMillis {
+                lsmTree.run(LinkedList(insertData))
+            }
+            val largeTreeCost = averageNodesAccessed(queries) { query, results -> largeTree.search(query, results) }
+
+            val label = if (incremental) "incremental" else "full"
+            println(String.format("%-12s %10d %8d %10d %17d %12.1f", label, insertTime, largeTree.repackCount, largeTree.repackMillis, largeTree.repackedRecordCount, largeTreeCost))
+        }
+    }
+
+    /**
+     * Bulk-loads the same data level by level on one thread, and with the ParallelBulkLoader in pools of 1, 2, 4 and
+     * all available threads. Each loading is timed after a warm-up, and the median of the repetitions is reported.
+     */
+    fun compareParallelBulkLoading(data: List<DataObject>, repetitions: Int = 3) {
+        println("loader       threads  bulk-load ms  speedup  leaf area")
+        val threadCounts = listOf(1, 2, 4, Runtime.getRuntime().availableProcessors()).distinct()
+        var sequentialTime = 0L
+        for (threads in listOf(0) + threadCounts) {
+            val pool = if (threads == 0) null else ForkJoinPool(threads)
+            lateinit var tree: SmallRTree
+            val times = (0..repetitions).map {
+                tree = SmallRTree(2, m, M, ArrayList(), -1, -1, SpaceFillingCurve.HILBERT, BulkLoadStrategy.SFC)
+                val records = toRecords(data)
+                measureTimeMillis { tree.bulkLoad(records, pool) }
+            }.drop(1).sorted()
+            pool?.shutdown()
+
+            val time = times[times.size / 2]
+            if (threads == 0) {
+                sequentialTime = time
+            }
+            val label = if (threads == 0) "sequential" else "parallel"
+            println(String.format("%-12s %7d %13d %8.2f %10.4g", label, maxOf(threads, 1), time, sequentialTime.toDouble() / time, averageLeafArea(tree.root)))
+        }
+    }
+
+    private fun averageNodesAccessed(queries: List<MBR>, search: (MBR, ArrayList<DataObject>) -> Int): Double {
+        var nodesAccessed = 0L
+        for (query in queries) {
+            nodesAccessed += search(query, ArrayList())
+        }
+        return nodesAccessed.toDouble() / queries.size
+    }
+
+    private fun averageLeafArea(root: RTreeNode): Double {
+        val leaves = ArrayList<RTreeNode>()
+        collectLeaves(root, leaves)
+        return leaves.sumOf { it.mbr.area } / leaves.size
+    }
+
+    private fun collectLeaves(node: RTreeNode, leaves: ArrayList<RTreeNode>) {
+        if (node.height == 0) {
+            leaves.add(node)
+            return
+        }
+        for (record in node.records) {
+            collectLeaves(record.child, leaves)
+        }
+    }
+
+    /**
+     * For every internal node, the summed overlap between each pair of children divided by the summed child area
+     */
+    private fun siblingOverlapRatios(node: RTreeNode): ArrayList<Double> {
+        val ratios = ArrayList<Double>()
+        if (node.height == 0) {
+            return ratios
+        }
+
+        val records = node.records
+        var totalOverlap = 0.0
+        for (i in records.indices) {
+            for (j in i + 1 until records.size) {
+                totalOverlap += records[i].mbr.calculateOverlap(records[j].mbr)
+            }
+            ratios.addAll(siblingOverlapRatios(records[i].child))
+        }
+        val totalArea = records.sumOf { it.mbr.area }
+        if (totalArea > 0) {
+            ratios.add(totalOverlap / totalArea)
+        }
+        return ratios
+    }
+
+    private fun toRecords(data: List<DataObject>): ArrayList<SFCRTreeRecord> {
+        val records = ArrayList<SFCRTreeRecord>(data.size)
+        for (d in data) {
+            records.add(SFCRTreeRecord(MBR(floatArrayOf(d.lowX, d.lowY), floatArrayOf(d.highX, d.highY)), d))
+        }
+        return records
+    }
+
+    companion object {
+
+        /**
+         * Points spread over a number of gaussian clusters inside the given extent
+         */
+        fun clusteredPoints(count: Int, extent: MBR, clusters: Int, random: Random): List<DataObject> {
+            val width = extent.high.x - extent.low.x
+            val height = extent.high.y - extent.low.y
+            val centers = List(clusters) {
+                Pair(extent.low.x + random.nextFloat() * width, extent.low.y + random.nextFloat() * height)
+            }
+            return List(count) {
+                val (centerX, centerY) = centers[random.nextInt(clusters)]
+                val x = (centerX + random.nextGaussian() * width * 0.02).toFloat()
+                    .coerceIn(extent.low.x, extent.high.x)
+                val y = (centerY + random.nextGaussian() * height * 0.02).toFloat()
+                    .coerceIn(extent.low.y, extent.high.y)
+                DataObject(x, y, x, y)
+            }
+        }
+
+        /**
+         * Square window queries covering the given fraction of the extent, placed uniformly inside the extent
+         */
+        fun windowQueries(count: Int, extent: MBR, fraction: Double, random: Random): List<MBR> {
+            val width = (extent.high.x - extent.low.x) * kotlin.math.sqrt(fraction).toFloat()
+            val height = (extent.high.y - extent.low.y) * kotlin.math.sqrt(fraction).toFloat()
+            return List(count) {
+                val x = extent.low.x + random.nextFloat() * (extent.high.x - extent.low.x - width)
+                val y = extent.low.y + random.nextFloat() * (extent.high.y - extent.low.y - height)
+                MBR(floatArrayOf(x, y), floatArrayOf(x + width, y + height))
+            }
+        }
+    }
+}
+
+/**
+ * Without arguments the benchmark runs on clustered points in a 100000 x 100000 extent. With "porto" it runs on
+ * geographic-scale data, clustered points in the lon/lat extent of Porto, or the Porto taxi trips csv when a path
+ * is given as second argument.
+ */
+fun main(args: Array<String>) {
+    val random = Random(42)
+    val extent: MBR
+    val data: List<DataObject>
+
+    if (args.isNotEmpty() && args[0] == "porto") {
+        extent = MBR(floatArrayOf(-8.75f, 41.05f), floatArrayOf(-8.45f, 41.25f))
+        data = if (args.size > 1) {
+            ImportRealData(args[1]).convertRawData(args[1], 10000).take(200000).shuffled(random)
+        } else {
+            PackingBenchmark.clusteredPoints(200000, extent, 50, random)
+        }
+    } else {
+        extent = MBR(floatArrayOf(0f, 0f), floatArrayOf(100000f, 100000f))
+        data = PackingBenchmark.clusteredPoints(200000, extent, 50, random)
+    }
+    val queries = PackingBenchmark.windowQueries(1000, extent, 0.0001, random)
+
+    val benchmark = PackingBenchmark(20, 50, 10000, 3)
+    benchmark.compareCurves(data.subList(0, data.size / 2), data.subList(data.size / 2, data.size), queries)
+    benchmark.comparePipelining(data.subList(0, data.size / 2), data.subList(data.size / 2, data.size), queries)
+    benchmark.compareRepacking(data.subList(0, data.size / 2), data.subList(data.size / 2, data.size), queries)
+    benchmark.compareParallelBulkLoading(PackingBenchmark.clusteredPoints(1000000, extent, 50, random))
+}
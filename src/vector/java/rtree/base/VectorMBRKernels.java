@@ -0,0 +1,83 @@
+package rtree.base;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * MBRKernels using the incubator Vector API, processing as many entries per instruction as the preferred vector
+ * shape of the platform holds. Entries left over after the last full vector are done one at a time.
+ * Only loaded when selected, see MBRKernels.
+ */
+final class VectorMBRKernels implements MBRKernels {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void enlargedAreas(EntryCoordinates entries, MBR mbr, float[] result) {
+        float lowX = mbr.getLow().getX();
+        float lowY = mbr.getLow().getY();
+        float highX = mbr.getHigh().getX();
+        float highY = mbr.getHigh().getY();
+
+        int i = 0;
+        int bound = SPECIES.loopBound(entries.size());
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector width = FloatVector.fromArray(SPECIES, entries.highX, i).max(highX)
+                    .sub(FloatVector.fromArray(SPECIES, entries.lowX, i).min(lowX));
+            FloatVector height = FloatVector.fromArray(SPECIES, entries.highY, i).max(highY)
+                    .sub(FloatVector.fromArray(SPECIES, entries.lowY, i).min(lowY));
+            width.mul(height).intoArray(result, i);
+        }
+        for (; i < entries.size(); i++) {
+            float width = Math.max(entries.highX[i], highX) - Math.min(entries.lowX[i], lowX);
+            float height = Math.max(entries.highY[i], highY) - Math.min(entries.lowY[i], lowY);
+            result[i] = width * height;
+        }
+    }
+
+    @Override
+    public void overlapAreas(EntryCoordinates entries, MBR mbr, float[] result) {
+        float lowX = mbr.getLow().getX();
+        float lowY = mbr.getLow().getY();
+        float highX = mbr.getHigh().getX();
+        float highY = mbr.getHigh().getY();
+
+        int i = 0;
+        int bound = SPECIES.loopBound(entries.size());
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector xOverlap = FloatVector.fromArray(SPECIES, entries.highX, i).min(highX)
+                    .sub(FloatVector.fromArray(SPECIES, entries.lowX, i).max(lowX)).max(0f);
+            FloatVector yOverlap = FloatVector.fromArray(SPECIES, entries.highY, i).min(highY)
+                    .sub(FloatVector.fromArray(SPECIES, entries.lowY, i).max(lowY)).max(0f);
+            xOverlap.mul(yOverlap).intoArray(result, i);
+        }
+        for (; i < entries.size(); i++) {
+            float xOverlap = Math.max(0, Math.min(entries.highX[i], highX) - Math.max(entries.lowX[i], lowX));
+            float yOverlap = Math.max(0, Math.min(entries.highY[i], highY) - Math.max(entries.lowY[i], lowY));
+            result[i] = xOverlap * yOverlap;
+        }
+    }
+
+    @Override
+    public void intersectionMask(EntryCoordinates entries, MBR query, boolean[] result) {
+        float lowX = query.getLow().getX();
+        float lowY = query.getLow().getY();
+        float highX = query.getHigh().getX();
+        float highY = query.getHigh().getY();
+
+        int i = 0;
+        int bound = SPECIES.loopBound(entries.size());
+        for (; i < bound; i += SPECIES.length()) {
+            VectorMask<Float> overlapping = FloatVector.fromArray(SPECIES, entries.highX, i).compare(VectorOperators.GT, lowX)
+                    .and(FloatVector.fromArray(SPECIES, entries.lowX, i).compare(VectorOperators.LT, highX))
+                    .and(FloatVector.fromArray(SPECIES, entries.highY, i).compare(VectorOperators.GT, lowY))
+                    .and(FloatVector.fromArray(SPECIES, entries.lowY, i).compare(VectorOperators.LT, highY));
+            overlapping.intoArray(result, i);
+        }
+        for (; i < entries.size(); i++) {
+            result[i] = entries.highX[i] > lowX && highX > entries.lowX[i]
+                    && entries.highY[i] > lowY && highY > entries.lowY[i];
+        }
+    }
+}